@@ -4,6 +4,7 @@ grammar MicroC;
 
 package compiler;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
 import ast.*;
@@ -38,13 +39,9 @@ import compiler.Scope.*;
 program : decls functions {ast = $functions.node;};
 
 /* Declarations */
-decls : var_decl decls
-      | str_decl decls
-      | func_decl decls
-	 | /* empty */ ;
+decls : (var_decl | str_decl | func_decl)* ;
 
-var_decls : var_decl var_decls 
-          | /* emoty */ ;
+var_decls : var_decl* ;
 
 /* Identifiers and types */		  
 id : IDENTIFIER ;
@@ -65,8 +62,9 @@ func_type returns [Scope.Type t]: type {$t = $type.t;}
 
 func_decl : func_type id '(' params ')' ';' {st.addFunction($func_type.t, $id.text, $params.types);};
 
-functions returns [FunctionListNode node] : function functions {$node = new FunctionListNode($function.node, $functions.node);}
-            | /* empty */ {$node = new FunctionListNode();};
+functions returns [FunctionListNode node]
+            @init { List<FunctionNode> fs = new ArrayList<FunctionNode>(); }
+            : (function {fs.add($function.node);})* {$node = new FunctionListNode(fs);};
 
 function returns [FunctionNode node] : func_type id '(' params ')' 
       {
@@ -87,35 +85,24 @@ function returns [FunctionNode node] : func_type id '(' params ')'
           /* Create FunctionNode */
           LocalScope funcScope = (LocalScope) st.currentScope();
           $node = new FunctionNode($statements.node, $id.text, funcScope);
+          $node.setTokenRange($start.getTokenIndex(), _input.LT(-1).getTokenIndex());
 
           /* Done with this scope, so pop the scope */
           st.popScope();
      };
 		 		 
-params returns [LinkedList<String> names, LinkedList<Scope.Type> types]: param params_rest 
-          {
-               $names = new LinkedList<String>();
-               $types = new LinkedList<Scope.Type>();
-               $names.add($param.name); $names.addAll($params_rest.names);
-               $types.add($param.param_type); $types.addAll($params_rest.types);
-          }
-       | /* empty */ {$names = new LinkedList<String>(); $types = new LinkedList<Scope.Type>();};
-		   
-params_rest returns [LinkedList<String> names, LinkedList<Scope.Type> types] : ',' param params_rest
-          {
-               $names = new LinkedList<String>();
-               $types = new LinkedList<Scope.Type>();
-               $names.add($param.name); $names.addAll($params_rest.names);
-               $types.add($param.param_type); $types.addAll($params_rest.types);
-          }
-            | /* empty */ {$names = new LinkedList<String>(); $types = new LinkedList<Scope.Type>();};
+params returns [LinkedList<String> names, LinkedList<Scope.Type> types]
+          @init { $names = new LinkedList<String>(); $types = new LinkedList<Scope.Type>(); }
+          : (p=param {$names.add($p.name); $types.add($p.param_type);}
+               (',' p=param {$names.add($p.name); $types.add($p.param_type);})*)? ;
 			
 param returns [String name, Scope.Type param_type] : type id {$name = $id.text; $param_type = $type.t;};                   
 
 /* Statements */
 		 
-statements returns [StatementListNode node] : statement s=statements {$node = new StatementListNode($statement.node, $s.node);}
-            | /* empty */ {$node = new StatementListNode();};
+statements returns [StatementListNode node]
+            @init { List<StatementNode> ss = new ArrayList<StatementNode>(); }
+            : (statement {ss.add($statement.node);})* {$node = new StatementListNode(ss);};
 			
 statement returns [StatementNode node] : base_stmt ';' {$node = $base_stmt.node;}
 		  | if_stmt {$node = $if_stmt.node;} /* NOT USED IN STEP 2 */
@@ -128,7 +115,7 @@ base_stmt returns [StatementNode node] : assign_stmt {$node = $assign_stmt.node;
 		| return_stmt {$node = $return_stmt.node;}
           | call_expr {$node = $call_expr.node;};
 		 
-read_stmt returns [ReadNode node] : 'read' '(' id ')' {$node = new ReadNode(new VarNode($id.text));} ;
+read_stmt returns [ReadNode node] : 'read' '(' id ')' {$node = new ReadNode(new VarNode($id.text, st));} ;
 
 print_stmt returns [WriteNode node] : 'print' '(' expr ')' {$node = new WriteNode($expr.node);};
 
@@ -157,7 +144,7 @@ while_stmt returns [WhileNode node] : 'while' '(' cond ')' '{' statements '}' {$
 	 
 /* Expressions */
 
-lval returns [ExpressionNode node] : id {$node = new VarNode($id.text);}
+lval returns [ExpressionNode node] : id {$node = new VarNode($id.text, st);}
         | ptr_expr {$node = $ptr_expr.node;};
 
 primary returns [ExpressionNode node] : lval {$node = $lval.node;}
@@ -186,15 +173,13 @@ array_expr returns [PtrDerefNode node] : lval '[' expr ']' { $node = new PtrDere
         | ae=array_expr '[' expr ']'{$node = new PtrDerefNode(new BinaryOpNode($ae.node, new BinaryOpNode(new IntLitNode("4"),$expr.node,"*"), "+"));}; /* FILL IN FOR STEP 6 */
 		 
 /* Call expressions */
-call_expr returns [AbstractCallNode node] : 'malloc' '(' expr ')' {$node = new MallocNode($expr.node);}
-     | 'free' '(' expr ')' {$node = new FreeNode($expr.node);}
-     | id '(' arg_list ')' {$node = new CallNode($id.text, $arg_list.args);};
+call_expr returns [AbstractCallNode node] : 'malloc' '(' expr ')' {$node = new MallocNode($expr.node, st);}
+     | 'free' '(' expr ')' {$node = new FreeNode($expr.node, st);}
+     | id '(' arg_list ')' {$node = new CallNode($id.text, $arg_list.args, st);};
 
-arg_list returns [List<ExpressionNode> args] : expr args_rest {$args = new LinkedList<ExpressionNode>(); $args.add($expr.node); $args.addAll($args_rest.args);}
-         | /* empty */ {$args = new LinkedList<ExpressionNode>();};
-		 
-args_rest returns [List<ExpressionNode> args] : ',' expr args_rest {$args = new LinkedList<ExpressionNode>(); $args.add($expr.node); $args.addAll($args_rest.args);}
-          | /* empty */ {$args = new LinkedList<ExpressionNode>();};
+arg_list returns [List<ExpressionNode> args]
+         @init { $args = new LinkedList<ExpressionNode>(); }
+         : (e=expr {$args.add($e.node);} (',' e=expr {$args.add($e.node);})*)? ;
 
 /* This is left recursive, but ANTLR will clean this up */ 
 expr returns [ExpressionNode node] : term {$node = $term.node;}
@@ -0,0 +1,103 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import assembly.CodeGenerator;
+import assembly.CodeObject;
+import ast.ASTNode;
+import compiler.Compiler;
+import compiler.MicroCLexer;
+import compiler.MicroCParser;
+
+/**
+ * JMH benchmarks for the phases of the compiler, each measured on its own:
+ *
+ * 1. <code>parse</code>: lexing and <code>MicroCParser.program()</code> (builds the symbol table and AST)
+ * 2. <code>codegen</code>: <code>CodeGenerator.run</code> over an already-parsed AST
+ * 3. <code>emit</code>: serializing the generated code with <code>CodeObject.toString</code>
+ *
+ * Run with <code>make bench</code>; the default arguments add the GC profiler so the
+ * report has allocated bytes per op (<code>gc.alloc.rate.norm</code>) next to ops/s.
+ *
+ * The register allocator only exists in the step 5 tree (src1), which is not
+ * built by the Makefile, so it has no phase here.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompilerPhases {
+
+	@Param({"tests/option2/test0.uC", "tests/option3/test4.uC", "synthetic:100", "synthetic:1000", "synthetic:functions=1,statements=2000"})
+	String input;
+
+	String source;
+	ASTNode ast;
+	CodeObject code;
+
+	PrintStream stdout;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		//the code generator reports what it is doing on stdout; keep that out of the measurements
+		stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		source = Inputs.load(input);
+		ast = parse(source);
+		code = new CodeGenerator().run(ast);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.setOut(stdout);
+	}
+
+	/**
+	 * Parse a program with a fresh symbol table, the way <code>Compiler.compile</code> does
+	 */
+	static ASTNode parse(String source) {
+		MicroCLexer lexer = new MicroCLexer(CharStreams.fromString(source));
+		MicroCParser parser = new MicroCParser(new CommonTokenStream(lexer));
+		Compiler.parse(parser, ConsoleErrorListener.INSTANCE, System.out);
+
+		return parser.getAST();
+	}
+
+	@Benchmark
+	public ASTNode parse() {
+		return parse(source);
+	}
+
+	@Benchmark
+	public CodeObject codegen() {
+		return new CodeGenerator().run(ast);
+	}
+
+	@Benchmark
+	public String emit() {
+		return code.toString();
+	}
+}
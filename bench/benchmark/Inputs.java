@@ -0,0 +1,41 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Benchmark inputs. An input is either the path of a uC file (e.g. one of the
+ * <code>tests/option*</code> programs) or <code>synthetic:SPEC</code>, a program from
+ * {@link ProgramGenerator}. SPEC is either a number of functions or a list of
+ * generator options, e.g. <code>synthetic:functions=10,statements=2000</code>.
+ */
+public class Inputs {
+
+	static final String SYNTHETIC = "synthetic:";
+
+	public static String load(String input) throws IOException {
+		if (input.startsWith(SYNTHETIC)) {
+			return synthetic(input.substring(SYNTHETIC.length()));
+		}
+		return new String(Files.readAllBytes(Paths.get(input)));
+	}
+
+	/**
+	 * A generated program: <code>N</code> is shorthand for <code>functions=N</code>,
+	 * otherwise the spec is a list of {@link ProgramGenerator} options
+	 */
+	public static String synthetic(String spec) {
+		ProgramGenerator gen = new ProgramGenerator();
+		if (spec.matches("[0-9]+")) {
+			gen.functions = Integer.parseInt(spec);
+		} else {
+			gen.parse(spec);
+		}
+		return gen.generate();
+	}
+
+	public static void main(String args[]) throws IOException {
+		System.out.print(load(args[0]));
+	}
+}
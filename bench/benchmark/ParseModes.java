@@ -0,0 +1,72 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ast.ASTNode;
+import compiler.Compiler;
+import compiler.MicroCLexer;
+import compiler.MicroCParser;
+import compiler.SymbolTable;
+
+/**
+ * Compares the parser as it used to be driven (full LL prediction, parse tree kept)
+ * with the two-stage parse in <code>Compiler.parse</code> (SLL without a parse tree,
+ * LL only after a syntax error) on large generated programs.
+ *
+ * Run with <code>make bench BENCH_ARGS="ParseModes -prof gc"</code>; compare ops/s and
+ * <code>gc.alloc.rate.norm</code> (bytes allocated per parse) of the two benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseModes {
+
+	@Param({"synthetic:1000", "synthetic:functions=1,statements=5000"})
+	String input;
+
+	String source;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		source = Inputs.load(input);
+	}
+
+	@Benchmark
+	public ASTNode fullLL() {
+		MicroCLexer lexer = new MicroCLexer(CharStreams.fromString(source));
+		MicroCParser parser = new MicroCParser(new CommonTokenStream(lexer));
+		parser.setSymbolTable(new SymbolTable());
+		parser.program();
+
+		return parser.getAST();
+	}
+
+	@Benchmark
+	public ASTNode twoStage() {
+		MicroCLexer lexer = new MicroCLexer(CharStreams.fromString(source));
+		MicroCParser parser = new MicroCParser(new CommonTokenStream(lexer));
+		Compiler.parse(parser, ConsoleErrorListener.INSTANCE, System.out);
+
+		return parser.getAST();
+	}
+}
@@ -0,0 +1,318 @@
+package benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates random (but deterministic for a given seed) uC programs for
+ * scalability testing of the compiler.
+ *
+ * The shape of the program is controlled by the fields below. Every generated
+ * program is valid for <code>MicroC.g4</code> and compiles with the current code
+ * generator: loops have their own counters and always terminate, the only
+ * division is by non-zero literals, and functions are only called as statements
+ * from main (each one adds its result into the global <code>g</code>, which main prints).
+ *
+ * Pointers are only ever pointed at variables with <code>&amp;</code>: each function
+ * has an <code>int *</code> cell and an <code>int **</code> pointing at that cell, and
+ * pointer statements re-target the cell or store through one or two dereferences.
+ *
+ * From the command line the options are given as <code>key=value</code> pairs, e.g.
+ * <code>java benchmark.ProgramGenerator functions=2000 statements=50 seed=7</code>.
+ */
+public class ProgramGenerator {
+
+	/** Number of functions besides main */
+	public int functions = 10;
+	/** Statements per function, counting the statements inside nested blocks */
+	public int statements = 20;
+	/** Maximum depth of an expression tree */
+	public int depth = 3;
+	/** Maximum nesting of if/while blocks */
+	public int nesting = 2;
+	/** Number of int parameters per function (drives the params/args rules) */
+	public int params = 2;
+	/** Number of int and float locals per function */
+	public int vars = 4;
+	/** Fraction of assignments that target a float local */
+	public double floatRatio = 0.25;
+	/** Fraction of statements (and expression leaves) that go through a pointer */
+	public double pointerRatio = 0.1;
+	public long seed = 42;
+
+	private Random rand;
+	private StringBuilder sb;
+
+	/**
+	 * Set one option from its command line name
+	 */
+	public void set(String key, String value) {
+		switch (key) {
+			case "functions": functions = atLeast(key, value, 0); break;
+			case "statements": statements = atLeast(key, value, 0); break;
+			case "depth": depth = atLeast(key, value, 1); break;
+			case "nesting": nesting = atLeast(key, value, 0); break;
+			case "params": params = atLeast(key, value, 0); break;
+			case "vars": vars = atLeast(key, value, 1); break;
+			case "float": floatRatio = Double.parseDouble(value); break;
+			case "pointers": pointerRatio = Double.parseDouble(value); break;
+			case "seed": seed = Long.parseLong(value); break;
+			default: throw new Error("Unknown generator option " + key);
+		}
+	}
+
+	private static int atLeast(String key, String value, int min) {
+		int n = Integer.parseInt(value);
+		if (n < min) {
+			throw new Error("Generator option " + key + " must be at least " + min + ", not " + n);
+		}
+		return n;
+	}
+
+	/**
+	 * Set options from a comma separated list of <code>key=value</code> pairs
+	 */
+	public void parse(String spec) {
+		for (String opt : spec.split(",")) {
+			if (opt.isEmpty()) {
+				continue;
+			}
+			int eq = opt.indexOf('=');
+			if (eq < 0) {
+				throw new Error("Generator option " + opt + " has no value");
+			}
+			set(opt.substring(0, eq), opt.substring(eq + 1));
+		}
+	}
+
+	public String generate() {
+		rand = new Random(seed);
+		sb = new StringBuilder();
+
+		sb.append("int g;\n");
+		sb.append("float h;\n");
+		for (int i = 0; i < functions; i++) {
+			signature(i);
+			sb.append(";\n");
+		}
+		for (int i = 0; i < functions; i++) {
+			function(i);
+		}
+
+		sb.append("int main() {\n\tg = 0;\n\th = 0.0;\n");
+		for (int i = 0; i < functions; i++) {
+			sb.append("\tf").append(i).append("(");
+			for (int j = 0; j < params; j++) {
+				if (j > 0) {
+					sb.append(", ");
+				}
+				sb.append(rand.nextInt(10));
+			}
+			sb.append(");\n");
+		}
+		sb.append("\tprint(g);\n\tprint(h);\n\treturn 0;\n}\n");
+		return sb.toString();
+	}
+
+	private void signature(int i) {
+		sb.append("int f").append(i).append("(");
+		for (int j = 0; j < params; j++) {
+			if (j > 0) {
+				sb.append(", ");
+			}
+			sb.append("int a").append(j);
+		}
+		sb.append(")");
+	}
+
+	private void function(int i) {
+		signature(i);
+		sb.append(" {\n");
+
+		//declarations: locals, loop counters (one per nesting level) and the pointer cells
+		for (int j = 0; j < vars; j++) {
+			sb.append("\tint v").append(j).append(";\n");
+			sb.append("\tfloat w").append(j).append(";\n");
+		}
+		for (int j = 0; j < nesting; j++) {
+			sb.append("\tint i").append(j).append(";\n");
+		}
+		sb.append("\tint * p;\n\tint ** q;\n");
+
+		//every local is initialized before the body reads it
+		for (int j = 0; j < vars; j++) {
+			sb.append("\tv").append(j).append(" = ");
+			if (params > 0) {
+				sb.append("a").append(j % params).append(" + ");
+			}
+			sb.append(j).append(";\n");
+			sb.append("\tw").append(j).append(" = ").append(j).append(".5;\n");
+		}
+		sb.append("\tp = &v0;\n\tq = &p;\n");
+
+		block(statements, 0, "\t");
+
+		sb.append("\tg = g + v0;\n");
+		sb.append("\th = h + w0;\n");
+		sb.append("\treturn v").append(vars - 1).append(";\n}\n");
+	}
+
+	/**
+	 * Emit <code>budget</code> statements at the given nesting level
+	 */
+	private void block(int budget, int level, String indent) {
+		while (budget > 0) {
+			int choice = rand.nextInt(10);
+			if (level < nesting && budget > 2 && choice < 2) {
+				//compound statements take part of the remaining budget for their bodies
+				int inner = 1 + rand.nextInt(Math.min(budget - 1, Math.max(1, statements / 4)));
+				if (choice == 0) {
+					ifStatement(inner, level, indent);
+				} else {
+					whileStatement(inner, level, indent);
+				}
+				budget -= inner + 1;
+			} else {
+				simpleStatement(indent);
+				budget--;
+			}
+		}
+	}
+
+	private void ifStatement(int budget, int level, String indent) {
+		sb.append(indent).append("if (");
+		condition();
+		sb.append(") {\n");
+		int thenBudget = rand.nextBoolean() ? budget : (budget + 1) / 2;
+		block(thenBudget, level + 1, indent + "\t");
+		if (thenBudget < budget) {
+			sb.append(indent).append("} else {\n");
+			block(budget - thenBudget, level + 1, indent + "\t");
+		}
+		sb.append(indent).append("}\n");
+	}
+
+	private void whileStatement(int budget, int level, String indent) {
+		String counter = "i" + level;
+		sb.append(indent).append(counter).append(" = 0;\n");
+		sb.append(indent).append("while (").append(counter).append(" < ").append(2 + rand.nextInt(3)).append(") {\n");
+		block(budget, level + 1, indent + "\t");
+		sb.append(indent).append("\t").append(counter).append(" = ").append(counter).append(" + 1;\n");
+		sb.append(indent).append("}\n");
+	}
+
+	private void simpleStatement(String indent) {
+		sb.append(indent);
+		if (rand.nextDouble() < pointerRatio) {
+			switch (rand.nextInt(3)) {
+				case 0:
+					sb.append("p = &v").append(rand.nextInt(vars));
+					break;
+				case 1:
+					sb.append("*p = ");
+					intExpr(rand.nextInt(depth + 1));
+					break;
+				default:
+					sb.append("**q = ");
+					intExpr(rand.nextInt(depth + 1));
+					break;
+			}
+		} else if (rand.nextDouble() < floatRatio) {
+			sb.append("w").append(rand.nextInt(vars)).append(" = ");
+			floatExpr(rand.nextInt(depth + 1));
+		} else {
+			sb.append("v").append(rand.nextInt(vars)).append(" = ");
+			intExpr(rand.nextInt(depth + 1));
+		}
+		sb.append(";\n");
+	}
+
+	private void condition() {
+		String[] ops = {"<", "<=", ">", ">=", "==", "!="};
+		boolean isFloat = rand.nextDouble() < floatRatio;
+		if (isFloat) {
+			floatExpr(rand.nextInt(depth));
+		} else {
+			intExpr(rand.nextInt(depth));
+		}
+		sb.append(" ").append(ops[rand.nextInt(ops.length)]).append(" ");
+		if (isFloat) {
+			floatExpr(rand.nextInt(depth));
+		} else {
+			intExpr(rand.nextInt(depth));
+		}
+	}
+
+	private void intExpr(int d) {
+		if (d <= 0) {
+			double r = rand.nextDouble();
+			if (r < pointerRatio) {
+				sb.append(rand.nextBoolean() ? "*p" : "**q");
+			} else if (r < 0.6) {
+				sb.append("v").append(rand.nextInt(vars));
+			} else if (r < 0.7 && params > 0) {
+				sb.append("a").append(rand.nextInt(params));
+			} else {
+				sb.append(rand.nextInt(10));
+			}
+			return;
+		}
+		switch (rand.nextInt(4)) {
+			case 0:
+				sb.append("(");
+				intExpr(d - 1);
+				sb.append(" + ");
+				intExpr(d - 1);
+				sb.append(")");
+				break;
+			case 1:
+				sb.append("(");
+				intExpr(d - 1);
+				sb.append(" - ");
+				intExpr(d - 1);
+				sb.append(")");
+				break;
+			case 2:
+				sb.append("(");
+				intExpr(d - 1);
+				sb.append(" * ");
+				intExpr(d - 1);
+				sb.append(")");
+				break;
+			default:
+				sb.append("(");
+				intExpr(d - 1);
+				sb.append(" / ").append(1 + rand.nextInt(9)).append(")");
+				break;
+		}
+	}
+
+	private void floatExpr(int d) {
+		if (d <= 0) {
+			if (rand.nextInt(4) == 0) {
+				sb.append(rand.nextInt(10)).append(".").append(rand.nextInt(10));
+			} else {
+				sb.append("w").append(rand.nextInt(vars));
+			}
+			return;
+		}
+		String[] ops = {" + ", " - ", " * "};
+		sb.append("(");
+		floatExpr(d - 1);
+		sb.append(ops[rand.nextInt(ops.length)]);
+		//mix in an int operand now and then (implicit conversion)
+		if (rand.nextInt(4) == 0) {
+			intExpr(0);
+		} else {
+			floatExpr(d - 1);
+		}
+		sb.append(")");
+	}
+
+	public static void main(String args[]) {
+		ProgramGenerator gen = new ProgramGenerator();
+		for (String arg : args) {
+			gen.parse(arg);
+		}
+		System.out.print(gen.generate());
+	}
+}
@@ -0,0 +1,104 @@
+; Symbol table GLOBAL
+; name g type INT location 0x20000000
+; Function: INT rd([INT])
+; Function: INT main([])
+
+; Symbol table rd
+; name k type INT location 12
+
+; Symbol table main
+; name a type INT location -4
+; name b type INT location -8
+; name c type INT location -12
+; name d type INT location -16
+; name e type INT location -20
+
+.section .text
+;Current temp: null
+;IR Code: 
+MV fp, sp
+LA x3, 0x20000800
+JR func_main
+HALT
+;
+func_rd:
+SW fp, 0(sp)
+MV fp, sp
+ADDI sp, sp, -4
+ADDI sp, sp, -4
+SW x5, -4(fp)
+LI x4, 10
+LW x5, -2048(x3)
+MUL x4, x5, x4
+LW x5, 12(fp)
+ADD x4, x4, x5
+SW x4, 8(fp)
+LW x5, -4(fp)
+J func_ret_rd
+func_ret_rd:
+MV sp, fp
+LW fp, 0(fp)
+RET
+;
+func_main:
+SW fp, 0(sp)
+MV fp, sp
+ADDI sp, sp, -4
+ADDI sp, sp, -24
+SW x5, -24(fp)
+GETI x4
+LI x5, 1
+ADD x5, x4, x5
+MV x5, x5
+SW x5, -2048(x3)
+LI x5, 2
+MUL x5, x4, x5
+MV x5, x5
+SW x5, -8(fp)
+LI x5, 3
+MUL x5, x4, x5
+MV x5, x5
+SW x5, -12(fp)
+LI x5, 4
+MUL x5, x4, x5
+MV x5, x5
+SW x5, -16(fp)
+LI x5, 5
+MUL x4, x4, x5
+MV x4, x4
+LW x5, -8(fp)
+SW x4, -20(fp)
+LW x4, -12(fp)
+ADD x4, x5, x4
+LW x5, -16(fp)
+ADD x4, x4, x5
+LW x5, -20(fp)
+ADD x4, x4, x5
+SW x4, 0(sp)
+ADDI sp, sp, -4
+ADDI sp, sp, -4
+SW ra, 0(sp)
+ADDI sp, sp, -4
+JR func_rd
+ADDI sp, sp, 4
+LW ra, 0(sp)
+ADDI sp, sp, 4
+LW x4, 0(sp)
+ADDI sp, sp, 4
+PUTI x4
+LI x4, 0
+MV x4, x4
+PUTI x4
+LI x5, 0
+SW x5, 8(fp)
+SW x4, -2048(x3)
+LW x5, -24(fp)
+J func_ret_main
+func_ret_main:
+MV sp, fp
+LW fp, 0(fp)
+RET
+;
+
+
+.section .strings
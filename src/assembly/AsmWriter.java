@@ -0,0 +1,84 @@
+package assembly;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+import assembly.instructions.Instruction;
+
+/**
+ * Writes assembly to a channel as it is generated, one instruction at a time,
+ * through a direct buffer. Nothing bigger than one instruction's text is ever
+ * built, so the memory needed to emit a program does not grow with its size.
+ */
+public class AsmWriter implements Closeable {
+
+	private WritableByteChannel out;
+	private ByteBuffer buf;
+	private CharsetEncoder encoder;
+
+	public AsmWriter(WritableByteChannel out) {
+		this.out = out;
+		buf = ByteBuffer.allocateDirect(64 * 1024);
+		encoder = StandardCharsets.UTF_8.newEncoder();
+	}
+
+	/**
+	 * Write one line of text
+	 */
+	public void writeLine(CharSequence line) throws IOException {
+		put(line);
+		put("\n");
+	}
+
+	/**
+	 * Write each instruction on its own line, the same as {@link InstructionList#toString}
+	 */
+	public void write(InstructionList code) throws IOException {
+		for (Instruction i : code) {
+			writeLine(i.toString());
+		}
+	}
+
+	/**
+	 * Write a code object, the same as {@link CodeObject#toString}
+	 */
+	public void write(CodeObject co) throws IOException {
+		put(co.header());
+		write(co.code);
+	}
+
+	private void put(CharSequence s) throws IOException {
+		CharBuffer chars = CharBuffer.wrap(s);
+		encoder.reset();
+		while (true) {
+			CoderResult r = encoder.encode(chars, buf, true);
+			if (r.isOverflow()) {
+				flush();
+			} else if (r.isUnderflow()) {
+				return;
+			} else {
+				r.throwException();
+			}
+		}
+	}
+
+	public void flush() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+}
@@ -0,0 +1,79 @@
+package assembly;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Basic block execution counts collected from an instrumented run.
+ *
+ * A program compiled with <code>--instrument</code> prints, just before it halts,
+ * {@link #MARKER}, then the number of counters followed by one count per block
+ * (in block id order). Anything the program printed before the last marker (its
+ * normal output), and anything that is not a number after it (a simulator summary
+ * line), is ignored when the profile is loaded.
+ */
+public class BlockProfile {
+
+	/**
+	 * String printed with PUTS in front of the dump
+	 */
+	public static final String MARKER = "#block-counts";
+
+	private List<Integer> counts;
+
+	public BlockProfile(List<Integer> counts) {
+		this.counts = counts;
+	}
+
+	/**
+	 * Load block counts from the saved output of an instrumented run
+	 *
+	 * @param fileName file holding the simulator output
+	 * @return the counts found at the end of the output
+	 * @throws IOException if the file cannot be read
+	 */
+	public static BlockProfile load(String fileName) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(fileName));
+		int start = -1;
+		for (int l = 0; l < lines.size(); l++) {
+			if (lines.get(l).contains(MARKER)) {
+				start = l + 1;
+			}
+		}
+		if (start < 0) {
+			throw new IOException("No block counts found in " + fileName);
+		}
+
+		//the dump is "N c0 c1 ... cN-1"
+		List<Integer> ints = new ArrayList<Integer>();
+		for (String line : lines.subList(start, lines.size())) {
+			try {
+				ints.add(Integer.parseInt(line.trim()));
+			} catch (NumberFormatException e) {
+				//simulator chatter, not part of the dump
+			}
+		}
+		if (ints.isEmpty() || ints.get(0) < 0 || ints.size() - 1 < ints.get(0)) {
+			throw new IOException("Block counts in " + fileName + " are incomplete");
+		}
+		return new BlockProfile(new ArrayList<Integer>(ints.subList(1, ints.get(0) + 1)));
+	}
+
+	public int getNumBlocks() {
+		return counts.size();
+	}
+
+	/**
+	 * @param blockId id handed out by the code generator
+	 * @return how many times the block ran, or 0 if the profile does not cover it
+	 */
+	public int getCount(int blockId) {
+		if (blockId < 0 || blockId >= counts.size()) {
+			return 0;
+		}
+		return counts.get(blockId);
+	}
+}
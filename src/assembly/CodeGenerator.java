@@ -1,12 +1,20 @@
 package assembly;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import compiler.Scope.SymbolTableEntry;
 import ast.visitor.AbstractASTVisitor;
 
 import ast.*;
 import assembly.instructions.*;
+import compiler.CompileStats;
+import compiler.FunctionCache;
 import compiler.Scope;
 
 public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
@@ -19,15 +27,117 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 	int loopLabel;
 	int elseLabel;
 	int outLabel;
+	int thenLabel;
+	int bodyLabel;
 
 	String currFunc;
+	int entryBlock;
+
+	//block profiling: counters live in a reserved global area starting at counterBase
+	boolean instrument;
+	int counterBase;
+	int markerAddress; //the string printed in front of the counters
+	int numBlocks;
+	BlockProfile profile;
+
+	//--stats: per-function numbers, null when not collecting
+	CompileStats stats;
+
+	//debugging output of the code generator
+	PrintStream log;
+	ByteArrayOutputStream logBuffer; //backs log for the per-function generators
+
+	//when set, functions are written out as soon as they are generated
+	AsmWriter emitter;
+
+	//generating a unit for the Linker: globals are referenced by name, and there is no start-up code
+	boolean relocatable;
+
+	//when set, unchanged functions are taken from the cache instead of being generated
+	FunctionCache cache;
 	
 	public CodeGenerator() {
 		loopLabel = 0;
 		elseLabel = 0;
 		outLabel = 0;
+		thenLabel = 0;
+		bodyLabel = 0;
 		intRegCount = 0;		
 		floatRegCount = 0;
+		instrument = false;
+		numBlocks = 0;
+		profile = null;
+		stats = null;
+		log = System.out;
+	}
+
+	/**
+	 * Insert a counter increment at the entry of every basic block, and dump the
+	 * counters with PUTI before HALT
+	 * 
+	 * @param counterBase address of the first counter; one word per block after it
+	 * @param markerAddress address of the string {@link BlockProfile#MARKER}, printed before the counters
+	 */
+	public void setInstrumentation(int counterBase, int markerAddress) {
+		this.instrument = true;
+		this.counterBase = counterBase;
+		this.markerAddress = markerAddress;
+	}
+
+	/**
+	 * Use block counts from an instrumented run to lay out branches and loops
+	 */
+	public void setProfile(BlockProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Send the code generator's debugging output somewhere other than stdout
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+
+	/**
+	 * Write the program to <code>emitter</code> while it is being generated, instead of
+	 * returning it. <code>run</code> then only returns the start-up code (which is also
+	 * the first thing written); each function follows as soon as it and all the
+	 * functions before it are done.
+	 */
+	public void setEmitter(AsmWriter emitter) {
+		this.emitter = emitter;
+	}
+
+	/**
+	 * Generate a relocatable unit instead of a program: <code>LA</code> takes the
+	 * name of a global variable or string instead of its address, and there is no
+	 * start-up code, only the functions. The Linker fills in the addresses.
+	 */
+	public void setRelocatable() {
+		this.relocatable = true;
+	}
+
+	/**
+	 * Reuse the code of functions that are unchanged since they were cached, and
+	 * cache the code of the others. Functions taken from the cache produce no
+	 * debugging output and no per-function statistics.
+	 */
+	public void setCache(FunctionCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Record time, allocation and code shape for every function into <code>stats</code>
+	 */
+	public void setStats(CompileStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return number of block ids handed out so far (the number of counters when instrumenting)
+	 */
+	public int getNumBlocks() {
+		return numBlocks;
 	}
 
 	public int getIntRegCount() {
@@ -125,14 +235,14 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		CodeObject co = new CodeObject();
 		
 		/* FILL IN FROM STEP 2 */
-		System.out.println("Calling rvalify from BinaryNode left");
+		log.println("Calling rvalify from BinaryNode left");
 		if (left.lval) {
 			left = rvalify(left);
 		}
 		co.code.addAll(left.code);
 
 		//STEP7
-		System.out.println("Left type: "+left.type);
+		log.println("Left type: "+left.type);
 		if (left.getType().type == Scope.InnerType.INT) {
 			if (right.getType().type == Scope.InnerType.FLOAT) {
 				co.code.add(new ImovF(left.temp, generateTemp(Scope.InnerType.FLOAT) ));
@@ -141,13 +251,13 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 			}
 		}
 
-		System.out.println("Calling rvalify from BinaryNode right");
+		log.println("Calling rvalify from BinaryNode right");
 		if (right.lval) {
 			right = rvalify(right);
 		}
 		co.code.addAll(right.code);
 
-		System.out.println("Right type: "+right.type);
+		log.println("Right type: "+right.type);
 		if (right.getType().type == Scope.InnerType.INT) {
 			if (left.getType().type == Scope.InnerType.FLOAT) {
 				co.code.add(new ImovF(right.temp, generateTemp(Scope.InnerType.FLOAT)));
@@ -294,7 +404,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		co.code.addAll(ileft);
 
 		//Step 2
-		System.out.println("Calling rvalify from AssignNode right");
+		log.println("Calling rvalify from AssignNode right");
 		if (right.lval) {
 			right = rvalify(right);
 		}
@@ -304,7 +414,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		Scope.InnerType lhs_type = left.getType().type;
 		Scope.InnerType rhs_type = right.getType().type;
 		if (rhs_type != lhs_type) {
-			System.out.println("Dealing type mismatch in AssigNode...");
+			log.println("Dealing type mismatch in AssigNode...");
 			if (lhs_type == Scope.InnerType.FLOAT) {
 				co.code.add(new ImovF(right.temp, generateTemp(Scope.InnerType.FLOAT)));
 				right.temp = co.code.getLast().getDest();
@@ -320,11 +430,11 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		
 		//Step 3
 		Instruction sw = null;
-		System.out.println("Type in AssignNOde: "+node.getType().type);
+		log.println("Type in AssignNOde: "+node.getType().type);
 		switch(node.getType().type) {
 			case INT:
 				if (left.isderef()){
-					System.out.println("left addr: "+left.temp);
+					log.println("left addr: "+left.temp);
 					sw = new Sw(right.temp, left.temp, "0");
 
 				}else {
@@ -362,7 +472,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 				}
 				break;
 			default:
-				System.out.println("Type error in assign node "+node.getType().type);
+				log.println("Type error in assign node "+node.getType().type);
 				throw new Error("Shouldn't read into other variable");
 		}
 		
@@ -475,7 +585,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 			//Step 1:
 			assert(expr.getSTE() != null);
 			
-			System.out.println("; generating code to print " + expr.getSTE());
+			log.println("; generating code to print " + expr.getSTE());
 
 			//Get the address of the variable
 			InstructionList addrCo = generateAddrFromVariable(expr);
@@ -605,101 +715,51 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		CodeObject co = new CodeObject();
 
 		/* FILL IN FROM STEP 3*/
-		CodeObject tmpo = new CodeObject();
 		
 		// Step 1:
 		String tempVar = generateTemp(Scope.InnerType.INT);
 		String elseLabel = generateElseLabel();
 		String outLabel = generateOutLabel();
 
+		//block ids are handed out before any layout decision so they match between runs
+		int thenBlock = generateBlockId();
+		int elseBlock = generateBlockId();
+		int outBlock = generateBlockId();
+
 		// Step 2:
 		co.code.addAll(cond.code);
 
-		Instruction oper;
-		// Step3
-		switch(cond.getReversedOp(cond.getOp())) {
-			case EQ: 
-			if (cond.isflt == false) {
-				oper = new Beq(cond.ltemp, cond.rtemp, elseLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				// Generate a new temp for result
-				oper = new Feq(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-			}
-			break;
-			case NE: 
-			if (cond.isflt == false) {
-				oper = new Bne(cond.ltemp, cond.rtemp, elseLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				// Generate a new temp for result
-				oper = new Feq(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-				oper = new Bne(tempVar, "x0", elseLabel);
-				tmpo.code.add(oper);
-			}
-			break;
-			case LT: 
-			if (cond.isflt == false) {
-				oper = new Blt(cond.ltemp, cond.rtemp, elseLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Flt(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-			}
-			break;
-			case LE: 
-			if (cond.isflt == false) {
-				oper = new Ble(cond.ltemp, cond.rtemp, elseLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Fle(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-			}
-			break;
-			case GT: 
-			if (cond.isflt == false) {
-				oper = new Bgt(cond.ltemp, cond.rtemp, elseLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Fle(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-				oper = new Bne(tempVar, "x0", elseLabel);
-				tmpo.code.add(oper);
-			}
-			break;
-			case GE: 
-			if (cond.isflt == false) {
-				oper = new Bge(cond.ltemp, cond.rtemp, elseLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Flt(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-				oper = new Beq(tempVar, "x0", elseLabel);
-				tmpo.code.add(oper);
-			}
-			break;
-
-			default:
-				throw new Error("Comparation OP not recognized");
+		// Step 3 and 4:
+		if (profile != null && profile.getCount(elseBlock) > profile.getCount(thenBlock)) {
+			//else side is hotter: branch to the then block and let the else block fall through
+			//		<cond code>
+			//		<branch> thenLabel
+			//		<else code>
+			//		j outLabel
+			//		thenLabel:
+			//		<then code>
+			//		outLabel:
+			String thenLabel = generateThenLabel();
+			co.code.addAll(generateBranch(cond, cond.getOp(), thenLabel, tempVar));
+			co.code.addAll(generateBlockCounter(elseBlock));
+			co.code.addAll(elist.code);
+			co.code.add(new J(outLabel));
+			co.code.add(new Label(thenLabel));
+			co.code.addAll(generateBlockCounter(thenBlock));
+			co.code.addAll(tlist.code);
+		} else {
+			co.code.addAll(generateBranch(cond, cond.getReversedOp(cond.getOp()), elseLabel, tempVar));
+			co.code.addAll(generateBlockCounter(thenBlock));
+			co.code.addAll(tlist.code);
+			co.code.add(new J(outLabel));
+			co.code.add(new Label(elseLabel));
+			co.code.addAll(generateBlockCounter(elseBlock));
+			co.code.addAll(elist.code);
 		}
 
-		// Step 4:
-		tmpo.code.addAll(tlist.code);
-		oper = new J(outLabel);
-		tmpo.code.add(oper);
-
-		oper = new Label(elseLabel);
-		tmpo.code.add(oper);
-
-		tmpo.code.addAll(elist.code);
-
-		oper = new Label(outLabel);
-		tmpo.code.add(oper);
-
 		// Step 5
-		co.code.addAll(tmpo.code);
+		co.code.add(new Label(outLabel));
+		co.code.addAll(generateBlockCounter(outBlock));
 
 		return co;
 	}
@@ -732,105 +792,110 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		CodeObject co = new CodeObject();
 
 		/* FILL IN FROM STEP 3*/
-		CodeObject tmpo = new CodeObject();
 
 		// Step 1:
 		String tempVar = generateTemp(Scope.InnerType.INT);
 		String loopLabel = generateLoopLabel() ;
 		String outLabel = generateOutLabel();
 
+		int headBlock = generateBlockId();
+		int bodyBlock = generateBlockId();
+		int outBlock = generateBlockId();
+
+		// Steps 2 to 5
+		if (profile != null && profile.getCount(bodyBlock) > profile.getCount(outBlock)) {
+			//loop usually iterates: rotate it so each iteration takes one branch instead of two
+			//		j loopLabel
+			//		bodyLabel:
+			//		<body code>
+			//		loopLabel:
+			//		<cond code>
+			//		<branch> bodyLabel
+			//		outLabel:
+			String bodyLabel = generateBodyLabel();
+			co.code.add(new J(loopLabel));
+			co.code.add(new Label(bodyLabel));
+			co.code.addAll(generateBlockCounter(bodyBlock));
+			co.code.addAll(slist.code);
+			co.code.add(new Label(loopLabel));
+			co.code.addAll(generateBlockCounter(headBlock));
+			co.code.addAll(cond.code);
+			co.code.addAll(generateBranch(cond, cond.getOp(), bodyLabel, tempVar));
+		} else {
+			co.code.add(new Label(loopLabel));
+			co.code.addAll(generateBlockCounter(headBlock));
+			co.code.addAll(cond.code);
+			co.code.addAll(generateBranch(cond, cond.getReversedOp(cond.getOp()), outLabel, tempVar));
+			co.code.addAll(generateBlockCounter(bodyBlock));
+			co.code.addAll(slist.code);
+			co.code.add(new J(loopLabel));
+		}
 
-		Instruction oper;
-
-		// loopLabel to loop back to!
-		oper = new Label(loopLabel);
-		co.code.add(oper);
+		co.code.add(new Label(outLabel));
+		co.code.addAll(generateBlockCounter(outBlock));
 
-		// Step 2:
-		co.code.addAll(cond.code);
+		return co;
+	}
 
+	/**
+	 * Generate the branch that jumps to <code>label</code> when <code>left op right</code> holds
+	 * 
+	 * Integer comparisons map straight onto a branch instruction. Float comparisons
+	 * compute the flag into <code>tempVar</code> with FEQ/FLT/FLE and branch on it.
+	 * 
+	 * @param cond code object of the condition (holds ltemp, rtemp and isflt)
+	 * @param op comparison to branch on
+	 * @param label branch target
+	 * @param tempVar int temporary for the float comparison result
+	 * @return the branch instructions
+	 */
+	protected InstructionList generateBranch(CodeObject cond, CodeObject.OpType op, String label, String tempVar) {
+		InstructionList il = new InstructionList();
 
-		// Step3
-		switch(cond.getReversedOp(cond.getOp())) {
-			case EQ: 
-			if (cond.isflt == false) {
-				oper = new Beq(cond.ltemp, cond.rtemp, outLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				// Generate a new temp for result
-				oper = new Feq(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-			}
-			break;
-			case NE: 
-			if (cond.isflt == false) {
-				oper = new Bne(cond.ltemp, cond.rtemp, outLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				// Generate a new temp for result
-				oper = new Feq(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-				oper = new Bne(tempVar, "x0", outLabel);
-				tmpo.code.add(oper);
-			}
-			break;
-			case LT: 
-			if (cond.isflt == false) {
-				oper = new Blt(cond.ltemp, cond.rtemp, outLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Flt(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-			}
-			break;
-			case LE: 
-			if (cond.isflt == false) {
-				oper = new Ble(cond.ltemp, cond.rtemp, outLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Fle(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-			}
-			break;
-			case GT: 
-			if (cond.isflt == false) {
-				oper = new Bgt(cond.ltemp, cond.rtemp, outLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Fle(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-				oper = new Bne(tempVar, "x0", outLabel);
-				tmpo.code.add(oper);
-			}
-			break;
-			case GE: 
-			if (cond.isflt == false) {
-				oper = new Bge(cond.ltemp, cond.rtemp, outLabel);
-				tmpo.code.add(oper);
-			} else { //Assuming float
-				oper = new Flt(cond.ltemp, cond.rtemp, tempVar);
-				tmpo.code.add(oper);
-				oper = new Bne(tempVar, "x0", outLabel);
-				tmpo.code.add(oper);
+		if (cond.isflt == false) {
+			switch(op) {
+				case EQ: il.add(new Beq(cond.ltemp, cond.rtemp, label)); break;
+				case NE: il.add(new Bne(cond.ltemp, cond.rtemp, label)); break;
+				case LT: il.add(new Blt(cond.ltemp, cond.rtemp, label)); break;
+				case LE: il.add(new Ble(cond.ltemp, cond.rtemp, label)); break;
+				case GT: il.add(new Bgt(cond.ltemp, cond.rtemp, label)); break;
+				case GE: il.add(new Bge(cond.ltemp, cond.rtemp, label)); break;
+				default:
+					throw new Error("Comparation OP not recognized");
 			}
-			break;
+			return il;
+		}
 
+		//float: set tempVar to the comparison (or its complement), then test it against x0
+		switch(op) {
+			case EQ:
+				il.add(new Feq(cond.ltemp, cond.rtemp, tempVar));
+				il.add(new Bne(tempVar, "x0", label));
+				break;
+			case NE:
+				il.add(new Feq(cond.ltemp, cond.rtemp, tempVar));
+				il.add(new Beq(tempVar, "x0", label));
+				break;
+			case LT:
+				il.add(new Flt(cond.ltemp, cond.rtemp, tempVar));
+				il.add(new Bne(tempVar, "x0", label));
+				break;
+			case LE:
+				il.add(new Fle(cond.ltemp, cond.rtemp, tempVar));
+				il.add(new Bne(tempVar, "x0", label));
+				break;
+			case GT:
+				il.add(new Fle(cond.ltemp, cond.rtemp, tempVar));
+				il.add(new Beq(tempVar, "x0", label));
+				break;
+			case GE:
+				il.add(new Flt(cond.ltemp, cond.rtemp, tempVar));
+				il.add(new Beq(tempVar, "x0", label));
+				break;
 			default:
 				throw new Error("Comparation OP not recognized");
 		}
-
-		// Step 4:
-		tmpo.code.addAll(slist.code);
-		oper = new J(loopLabel);
-		tmpo.code.add(oper);
-
-		oper = new Label(outLabel);
-		tmpo.code.add(oper);
-
-		// Step 5
-		co.code.addAll(tmpo.code);
-
-		return co;
+		return il;
 	}
 
 	/**
@@ -852,7 +917,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 
 		/* FILL IN FROM STEP 4 */
 		if(node.getRetExpr() != null){
-			System.out.println("Calling rvalify from ReturnNode");
+			log.println("Calling rvalify from ReturnNode");
 			if (retExpr.lval == true) {
 				retExpr = rvalify(retExpr);
 			}
@@ -879,12 +944,26 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 
 	@Override
 	protected void preprocess(FunctionNode node) {
+		if (stats != null) {
+			stats.startFunction();
+		}
+
 		// Generate function label information, used for other labels inside function
 		currFunc = node.getFuncName();
 
 		//reset register counts; each function uses new registers!
 		intRegCount = 0;
 		floatRegCount = 0;
+
+		//labels are qualified by the function name, so their numbering can restart too
+		loopLabel = 0;
+		elseLabel = 0;
+		outLabel = 0;
+		thenLabel = 0;
+		bodyLabel = 0;
+
+		//entry block gets its id before the blocks of the body
+		entryBlock = generateBlockId();
 	}
 
 	/**
@@ -916,6 +995,9 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 	protected CodeObject postprocess(FunctionNode node, CodeObject body) {
 		CodeObject co = new CodeObject();
 
+		//make the counter temps before the register saves are generated
+		InstructionList entryCounter = generateBlockCounter(entryBlock);
+
 		/* FILL IN */
 		// Step 1:
 		String funcBegLabel = generateFunctionLabel();
@@ -942,8 +1024,9 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 			co.code.add(new Addi("sp", "-4", "sp"));
 		}
 
-		//Step 5:
-		co.code.addAll(body.code);
+		//Step 5: (without the loads and stores it does not need)
+		co.code.addAll(entryCounter);
+		co.code.addAll(new LoadStoreElimination(body.code).run());
 
 		//Step 6:
 		//a.
@@ -965,9 +1048,195 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		//e.
 		co.code.add(new Ret());
 
+		if (stats != null) {
+			stats.endFunction(node, co.code, getIntRegCount() + getFloatRegCount());
+		}
+
 		return co;
 	}
 
+	/**
+	 * Functions share no code generation state (temps, labels and block ids are all
+	 * per function), so each one gets its own CodeGenerator and they run in parallel.
+	 * The code, debugging output and statistics are merged back in program order, and
+	 * come out exactly as if the functions had been generated one after the other.
+	 */
+	@Override
+	public CodeObject visit(FunctionListNode node) {
+		preprocess(node);
+		List<FunctionNode> functions = node.getFunctions();
+
+		//block ids are numbered through the whole program, so find where each function's ids start
+		List<CodeGenerator> gens = new ArrayList<CodeGenerator>();
+		List<Integer> blocks = new ArrayList<Integer>();
+		for (FunctionNode f : functions) {
+			gens.add(forFunction(numBlocks));
+			BlockCounter bc = new BlockCounter();
+			bc.run(f);
+			blocks.add(bc.count);
+			numBlocks += bc.count;
+		}
+
+		List<CodeObject> funcs = new ArrayList<CodeObject>();
+		CodeObject co = null;
+		if (emitter != null) {
+			//the start-up code only depends on the number of blocks, so it can go out first
+			co = postprocess(node, funcs);
+			if (!relocatable) {
+				try {
+					emitter.write(co);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+
+		//only the code generation runs on the workers; logs, stats and output are handled here, in order
+		List<Object> results = IntStream.range(0, functions.size()).parallel()
+				.mapToObj(i -> gens.get(i).runFunction(functions.get(i), blocks.get(i)))
+				.toList();
+		for (int i = 0; i < results.size(); i++) {
+			CodeGenerator gen = gens.get(i);
+			Object result = results.get(i);
+			log.print(gen.logBuffer.toString());
+			gen.logBuffer = null;
+			if (stats != null) {
+				stats.addFunctions(gen.stats);
+			}
+			//fail on the first broken function, like a sequential run would
+			if (result instanceof RuntimeException) {
+				throw (RuntimeException) result;
+			} else if (result instanceof Error) {
+				throw (Error) result;
+			}
+			CodeObject f = (CodeObject) result;
+			if (emitter != null) {
+				emit(f.code);
+				emit(new Blank());
+			} else {
+				funcs.add(f);
+			}
+		}
+
+		if (emitter != null) {
+			return co;
+		}
+		return postprocess(node, funcs);
+	}
+
+	private void emit(InstructionList code) {
+		try {
+			emitter.write(code);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void emit(Instruction i) {
+		try {
+			emitter.writeLine(i.toString());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * A generator for one function, with this generator's options, whose block ids start at blockBase
+	 */
+	private CodeGenerator forFunction(int blockBase) {
+		CodeGenerator gen = new CodeGenerator();
+		gen.instrument = instrument;
+		gen.counterBase = counterBase;
+		gen.profile = profile;
+		gen.numBlocks = blockBase;
+		gen.cache = cache;
+		gen.relocatable = relocatable;
+		gen.logBuffer = new ByteArrayOutputStream();
+		gen.log = new PrintStream(gen.logBuffer);
+		if (stats != null) {
+			gen.stats = new CompileStats();
+		}
+		return gen;
+	}
+
+	/**
+	 * @param blocks number of block ids the function uses
+	 * @return the code of the function, or what was thrown while generating it
+	 */
+	private Object runFunction(FunctionNode node, int blocks) {
+		if (stats != null) {
+			stats.startWork();
+		}
+		try {
+			if (cache == null) {
+				return run(node);
+			}
+
+			String key = cache.key(node, cacheOptions(blocks));
+			List<String> lines = cache.get(key);
+			if (lines != null) {
+				CodeObject co = new CodeObject();
+				for (String line : lines) {
+					co.code.add(new Verbatim(line));
+				}
+				return co;
+			}
+
+			CodeObject co = run(node);
+			cache.put(key, co.code);
+			return co;
+		} catch (RuntimeException | Error e) {
+			return e;
+		} finally {
+			if (stats != null) {
+				stats.endWork();
+			}
+		}
+	}
+
+	/**
+	 * The options that change the code of a function whose block ids start at numBlocks:
+	 * where its counters are when instrumenting, and its blocks' counts when using a profile
+	 */
+	private String cacheOptions(int blocks) {
+		StringBuilder sb = new StringBuilder();
+		if (relocatable) {
+			sb.append("unit ");
+		}
+		if (instrument) {
+			sb.append("instrument ").append(counterBase).append(" ").append(numBlocks);
+		}
+		if (profile != null) {
+			sb.append(" profile");
+			for (int b = numBlocks; b < numBlocks + blocks; b++) {
+				sb.append(" ").append(profile.getCount(b));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Counts the block ids a function will use: its entry, and three for every if and while
+	 */
+	private static class BlockCounter extends AbstractASTVisitor<Void> {
+		int count = 0;
+
+		@Override
+		protected void preprocess(FunctionNode node) {
+			count++;
+		}
+
+		@Override
+		protected void preprocess(IfStatementNode node) {
+			count += 3;
+		}
+
+		@Override
+		protected void preprocess(WhileNode node) {
+			count += 3;
+		}
+	}
+
 	/**
 	 * Generate code for the list of functions. This is the "top level" code generation function
 	 * 
@@ -978,15 +1247,16 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 	 * Step 3: Insert a HALT
 	 * 
 	 * Step 4: Include all the code of the functions
+	 * 
+	 * When instrumenting, the block counters are cleared before the JR to main
+	 * and dumped (the marker string, the count of counters, then each counter)
+	 * before the HALT.
+	 *
+	 * A relocatable unit has no start-up code; the Linker adds it to the program.
 	 */
 	@Override
 	protected CodeObject postprocess(FunctionListNode node, List<CodeObject> funcs) {
-		CodeObject co = new CodeObject();
-
-		co.code.add(new Mv("sp", "fp"));
-		co.code.add(new Jr(generateFunctionLabel("main")));
-		co.code.add(new Halt());
-		co.code.add(new Blank());
+		CodeObject co = relocatable ? new CodeObject() : startup();
 
 		//add code for each of the functions
 		for (CodeObject c : funcs) {
@@ -997,6 +1267,42 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		return co;
 	}
 
+	/**
+	 * @return the start-up code of a program (steps 1 to 3 above), followed by a blank line
+	 */
+	public CodeObject startup() {
+		CodeObject co = new CodeObject();
+
+		co.code.add(new Mv("sp", "fp"));
+		if (instrument) {
+			String base = generateTemp(Scope.InnerType.INT);
+			co.code.add(new La(base, String.format("0x%x", counterBase)));
+			for (int i = 0; i < numBlocks; i++) {
+				co.code.add(new Sw("x0", base, String.valueOf(4 * i)));
+			}
+		}
+		co.code.add(new Jr(generateFunctionLabel("main")));
+		if (instrument) {
+			String marker = generateTemp(Scope.InnerType.INT);
+			co.code.add(new La(marker, String.format("0x%x", markerAddress)));
+			co.code.add(new PutS(marker));
+			String base = generateTemp(Scope.InnerType.INT);
+			String n = generateTemp(Scope.InnerType.INT);
+			co.code.add(new Li(n, String.valueOf(numBlocks)));
+			co.code.add(new PutI(n));
+			co.code.add(new La(base, String.format("0x%x", counterBase)));
+			for (int i = 0; i < numBlocks; i++) {
+				String count = generateTemp(Scope.InnerType.INT);
+				co.code.add(new Lw(count, base, String.valueOf(4 * i)));
+				co.code.add(new PutI(count));
+			}
+		}
+		co.code.add(new Halt());
+		co.code.add(new Blank());
+
+		return co;
+	}
+
 	/**
 	* 
 	* FILL IN FOR STEP 4
@@ -1035,7 +1341,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 
 		/* FILL IN FROM STEP 4 */
 		for (CodeObject ar : args) {
-			System.out.println("Calling rvalify from CallNode arg");
+			log.println("Calling rvalify from CallNode arg");
 
 			if (ar.lval) {
 				ar = rvalify(ar);
@@ -1109,7 +1415,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 
 		// Step 1
 		// If the expr is in the symbol table you rvalify
-		System.out.println("Calling rvalify from PtrDeref expr");
+		log.println("Calling rvalify from PtrDeref expr");
 		if (expr.lval) {
 			expr = rvalify(expr);
 		}
@@ -1122,7 +1428,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		co.lval = true;
 		
 		// Step 4
-		System.out.println("Inside ptrderef with addr reg: "+expr.temp+" and type: "+node.getType());
+		log.println("Inside ptrderef with addr reg: "+expr.temp+" and type: "+node.getType());
 		co.type = node.getType(); // Get the unwrapped type
 
 		co.isderef = true;
@@ -1169,7 +1475,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		co.lval = false;
 
 		// Step3
-		System.out.println("Inside Addr expr with addr reg: "+expr.temp+" and type: "+node.getType());
+		log.println("Inside Addr expr with addr reg: "+expr.temp+" and type: "+node.getType());
 		co.type = node.getType();
 
 		return co;
@@ -1208,7 +1514,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 
 		co.temp = tempAddr;
 
-		System.out.println("Destination is "+co.temp);
+		log.println("Destination is "+co.temp);
 		
 		co.lval = false; // Check
 		// Step 3
@@ -1262,15 +1568,54 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 	}
 
 	protected String generateLoopLabel() {
-		return "loop_" + String.valueOf(++loopLabel);
+		return "loop_" + currFunc + "_" + String.valueOf(++loopLabel);
 	}
 
 	protected String generateElseLabel() {
-		return  "else_" + String.valueOf(++elseLabel);
+		return  "else_" + currFunc + "_" + String.valueOf(++elseLabel);
 	}
 
 	protected String generateOutLabel() {
-		return "out_" +  String.valueOf(++outLabel);
+		return "out_" + currFunc + "_" + String.valueOf(++outLabel);
+	}
+
+	protected String generateThenLabel() {
+		return "then_" + currFunc + "_" + String.valueOf(++thenLabel);
+	}
+
+	protected String generateBodyLabel() {
+		return "body_" + currFunc + "_" + String.valueOf(++bodyLabel);
+	}
+
+	/**
+	 * Hand out the id of a new basic block. Ids are given in visiting order, which
+	 * does not depend on how the blocks end up laid out.
+	 */
+	protected int generateBlockId() {
+		return numBlocks++;
+	}
+
+	/**
+	 * Generate the counter increment for a block entry (empty unless instrumenting)
+	 * 
+	 * la tmp, counter
+	 * lw tmp', 0(tmp)
+	 * addi tmp', tmp', 1
+	 * sw tmp', 0(tmp)
+	 */
+	protected InstructionList generateBlockCounter(int blockId) {
+		InstructionList il = new InstructionList();
+		if (!instrument) {
+			return il;
+		}
+
+		String addr = generateTemp(Scope.InnerType.INT);
+		String count = generateTemp(Scope.InnerType.INT);
+		il.add(new La(addr, String.format("0x%x", counterBase + 4 * blockId)));
+		il.add(new Lw(count, addr, "0"));
+		il.add(new Addi(count, "1", count));
+		il.add(new Sw(count, addr, "0"));
+		return il;
 	}
 
 	protected String generateFunctionLabel() {
@@ -1332,7 +1677,7 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 			ptrVar = true;
 		}
 
-		System.out.println("rvalify type: "+lco.type.type+" wtih ptrVar "+ptrVar);
+		log.println("rvalify type: "+lco.type.type+" wtih ptrVar "+ptrVar);
 		switch(lco.type.type) {
 			case INT:
 			case PTR:
@@ -1418,7 +1763,8 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		} else {
 			//If global, address in symbol table is the right location
 			//la tmp' addr //Register type needs to be an int
-			compAddr = new La(generateTemp(Scope.InnerType.INT), address);
+			//(in a unit, the name: the Linker decides where globals go)
+			compAddr = new La(generateTemp(Scope.InnerType.INT), relocatable ? symbol.getName() : address);
 		}
 		il.add(compAddr); //add instruction to code object
 
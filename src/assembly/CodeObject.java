@@ -92,14 +92,20 @@ public class CodeObject {
 	public String toString() {
 		StringWriter sw = new StringWriter();
 		
-		sw.write(";Current temp: " + temp + "\n");
-		sw.write(";IR Code: \n");
+		sw.write(header());
 		
 		sw.write(code.toString());
 		
 		return sw.toString();
 	}
 	
+	/**
+	 * @return the comment lines printed before the code
+	 */
+	String header() {
+		return ";Current temp: " + temp + "\n" + ";IR Code: \n";
+	}
+
 	public Collection<Instruction> getCode() {
 		return code;
 	}
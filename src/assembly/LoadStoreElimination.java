@@ -0,0 +1,511 @@
+package assembly;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import assembly.instructions.Addi;
+import assembly.instructions.FMv;
+import assembly.instructions.Flw;
+import assembly.instructions.Instruction;
+import assembly.instructions.J;
+import assembly.instructions.Jr;
+import assembly.instructions.La;
+import assembly.instructions.Label;
+import assembly.instructions.Mv;
+
+/**
+ * Removes redundant loads and stores from the code of a function body, using
+ * dataflow over its basic blocks.
+ *
+ * A memory location is a base and an offset: <code>off(fp)</code> for locals and
+ * arguments, the address an <code>LA</code> put in the base for globals, and the
+ * base temporary itself for accesses through a pointer. Accesses off sp (arguments
+ * being pushed, return values being popped) are left alone.
+ *
+ * Loads: a forward pass finds, for each location, the temporary that holds its
+ * value on every path to a point (the last value stored there or loaded from it).
+ * A load from a location whose value is already in a temporary becomes a move.
+ *
+ * Stores: a backward pass finds the locations that may be read before they are
+ * written again. A store to a location that is not is removed. When the function
+ * returns, globals, memory reached through pointers and the return value and
+ * arguments above fp may still be read; its locals may not.
+ *
+ * Aliasing: two different locals or globals are never the same location. An
+ * access through a pointer may be any global, any local whose address the
+ * function takes (<code>ADDI tmp, fp, off</code>), or any other pointer access,
+ * so it is only optimized against accesses it is known not to overlap. A call
+ * may read and write the same locations a pointer can reach.
+ *
+ * Locations are numbered once, and the sets the passes work with are bit sets
+ * over those numbers, so that a kill or an alias query costs a few word
+ * operations rather than a scan of every location.
+ */
+public class LoadStoreElimination {
+
+	private List<Instruction> code;
+
+	//number of times each temporary is written
+	private Map<String, Integer> defs;
+	//address held by the temporaries whose only write is an LA
+	private Map<String, String> addresses;
+	//frame offsets of the locals whose address the function takes
+	private Set<Integer> escaped;
+
+	//every location the code accesses, by number, and the number of each
+	private List<String> locations;
+	private Map<String, Integer> numbers;
+	//location each instruction accesses, or -1
+	private int[] accessed;
+	//locations a pointer or a call may reach
+	private BitSet reachable;
+	//locations accessed through each pointer temporary, and through any of them
+	private Map<String, BitSet> throughPointer;
+	private BitSet throughAnyPointer;
+	//locations each temporary may hold the value of (it is loaded from them or stored to them)
+	private Map<String, BitSet> holders;
+	//what an access through each pointer temporary may overlap, besides the location itself
+	private Map<String, BitSet> pointerAliases;
+
+	//first instruction of each block, and the end of the code
+	private List<Integer> leaders;
+	private List<List<Integer>> succs;
+	private List<List<Integer>> preds;
+	//blocks that leave the function (jump to the return label, or fall off the end of the body)
+	private boolean[] exits;
+
+	public LoadStoreElimination(InstructionList body) {
+		code = new ArrayList<Instruction>(body.nodes);
+		defs = new HashMap<String, Integer>();
+		addresses = new HashMap<String, String>();
+		escaped = new HashSet<Integer>();
+		locations = new ArrayList<String>();
+		numbers = new HashMap<String, Integer>();
+		reachable = new BitSet();
+		throughPointer = new HashMap<String, BitSet>();
+		throughAnyPointer = new BitSet();
+		holders = new HashMap<String, BitSet>();
+		pointerAliases = new HashMap<String, BitSet>();
+
+		for (Instruction i : code) {
+			String d = defined(i);
+			if (d != null) {
+				defs.merge(d, 1, Integer::sum);
+			}
+		}
+		for (Instruction i : code) {
+			if (i instanceof La && defs.get(i.getDest()) == 1) {
+				addresses.put(i.getDest(), i.getLabel());
+			} else if (i instanceof Addi && "fp".equals(i.getSrc1())) {
+				escaped.add(Integer.parseInt(i.getSrc2()));
+			}
+		}
+		for (Instruction i : code) {
+			String loc = location(i);
+			if (loc != null && !numbers.containsKey(loc)) {
+				int n = locations.size();
+				locations.add(loc);
+				numbers.put(loc, n);
+				if (!isLocal(loc) || escaped.contains(offset(loc))) {
+					reachable.set(n);
+				}
+				if (pointer(loc) != null) {
+					throughPointer.computeIfAbsent(pointer(loc), p -> new BitSet()).set(n);
+					throughAnyPointer.set(n);
+				}
+			}
+		}
+		setAccessed();
+		for (int idx = 0; idx < code.size(); idx++) {
+			Instruction i = code.get(idx);
+			if (accessed[idx] >= 0 && (i.isLoad() || isTemp(i.getDest()))) {
+				holders.computeIfAbsent(i.getDest(), t -> new BitSet()).set(accessed[idx]);
+			}
+		}
+	}
+
+	/**
+	 * @return the body without the redundant loads and stores
+	 */
+	public InstructionList run() {
+		if (!code.isEmpty() && !locations.isEmpty()) {
+			setBlocks();
+			forwardLoads();
+			setAccessed();
+			removeDeadStores();
+			removeUnusedAddresses();
+		}
+		InstructionList il = new InstructionList();
+		il.addAll(code);
+		return il;
+	}
+
+	private void setAccessed() {
+		accessed = new int[code.size()];
+		for (int idx = 0; idx < code.size(); idx++) {
+			String loc = location(code.get(idx));
+			accessed[idx] = (loc == null) ? -1 : numbers.get(loc);
+		}
+	}
+
+	private void setBlocks() {
+		TreeSet<Integer> starts = new TreeSet<Integer>();
+		Map<String, Integer> labels = new HashMap<String, Integer>();
+		starts.add(0);
+		for (int idx = 0; idx < code.size(); idx++) {
+			Instruction i = code.get(idx);
+			if (i instanceof Label) {
+				starts.add(idx);
+				labels.put(i.getLabel(), idx);
+			} else if (i.endsBlock()) {
+				starts.add(idx + 1);
+			}
+		}
+		starts.add(code.size());
+		leaders = new ArrayList<Integer>(starts);
+
+		int numBlocks = leaders.size() - 1;
+		Map<Integer, Integer> blockAt = new HashMap<Integer, Integer>();
+		succs = new ArrayList<List<Integer>>();
+		preds = new ArrayList<List<Integer>>();
+		exits = new boolean[numBlocks];
+		for (int b = 0; b < numBlocks; b++) {
+			blockAt.put(leaders.get(b), b);
+			succs.add(new ArrayList<Integer>());
+			preds.add(new ArrayList<Integer>());
+		}
+		for (int b = 0; b < numBlocks; b++) {
+			Instruction last = code.get(leaders.get(b + 1) - 1);
+			if (last.endsBlock()) {
+				Integer target = labels.get(last.getLabel());
+				if (target != null) {
+					edge(b, blockAt.get(target));
+				} else {
+					exits[b] = true; //the return label
+				}
+			}
+			if (!(last instanceof J)) {
+				if (b + 1 < numBlocks) {
+					edge(b, b + 1);
+				} else {
+					exits[b] = true;
+				}
+			}
+		}
+	}
+
+	private void edge(int from, int to) {
+		succs.get(from).add(to);
+		preds.get(to).add(from);
+	}
+
+	/**
+	 * Locations whose values are held in temporaries
+	 */
+	private static class Available {
+		BitSet has = new BitSet();
+		Map<Integer, String> temps = new HashMap<Integer, String>(); //only meaningful where has is set
+
+		Available copy() {
+			Available a = new Available();
+			a.has = (BitSet) has.clone();
+			for (int l = has.nextSetBit(0); l >= 0; l = has.nextSetBit(l + 1)) {
+				a.temps.put(l, temps.get(l));
+			}
+			return a;
+		}
+
+		String get(int l) {
+			return has.get(l) ? temps.get(l) : null;
+		}
+
+		void put(int l, String t) {
+			has.set(l);
+			temps.put(l, t);
+		}
+
+		//keep only what o has too, in the same temporary
+		void meet(Available o) {
+			has.and(o.has);
+			for (int l = has.nextSetBit(0); l >= 0; l = has.nextSetBit(l + 1)) {
+				if (!temps.get(l).equals(o.temps.get(l))) {
+					has.clear(l);
+				}
+			}
+		}
+
+		boolean same(Available o) {
+			if (o == null || !has.equals(o.has)) {
+				return false;
+			}
+			for (int l = has.nextSetBit(0); l >= 0; l = has.nextSetBit(l + 1)) {
+				if (!temps.get(l).equals(o.temps.get(l))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Available values: turn loads of values already in a temporary into moves
+	 */
+	private void forwardLoads() {
+		int numBlocks = leaders.size() - 1;
+		List<Available> out = new ArrayList<Available>();
+		for (int b = 0; b < numBlocks; b++) {
+			out.add(null); //not computed yet: everything is available
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b = 0; b < numBlocks; b++) {
+				Available o = available(b, availableIn(b, out), false);
+				if (!o.same(out.get(b))) {
+					out.set(b, o);
+					changed = true;
+				}
+			}
+		}
+		for (int b = 0; b < numBlocks; b++) {
+			available(b, availableIn(b, out), true);
+		}
+	}
+
+	private Available availableIn(int b, List<Available> out) {
+		Available in = null;
+		if (b > 0) {
+			for (int p : preds.get(b)) {
+				Available o = out.get(p);
+				if (o == null) {
+					continue;
+				} else if (in == null) {
+					in = o.copy();
+				} else {
+					in.meet(o);
+				}
+			}
+		}
+		return (in == null) ? new Available() : in;
+	}
+
+	/**
+	 * @param avail temporaries holding locations' values at the start of the block
+	 * @param rewrite replace the redundant loads of the block with moves
+	 * @return the same at the end of the block
+	 */
+	private Available available(int b, Available avail, boolean rewrite) {
+		for (int idx = leaders.get(b); idx < leaders.get(b + 1); idx++) {
+			Instruction i = code.get(idx);
+			int loc = accessed[idx];
+			if (i.isLoad()) {
+				String x = i.getDest();
+				String y = (loc < 0) ? null : avail.get(loc);
+				written(avail, x);
+				if (y != null && !y.equals(x) && y.charAt(0) == x.charAt(0)) {
+					if (rewrite) {
+						code.set(idx, (i instanceof Flw) ? new FMv(y, x) : new Mv(y, x));
+					}
+				} else if (loc >= 0 && !x.equals(pointer(locations.get(loc)))) {
+					avail.put(loc, x);
+				}
+			} else if (i.isStore()) {
+				if (loc >= 0) {
+					avail.has.andNot(aliases(loc));
+					avail.has.clear(loc);
+					if (isTemp(i.getDest())) {
+						avail.put(loc, i.getDest());
+					}
+				}
+			} else if (i instanceof Jr) {
+				avail.has.andNot(reachable);
+			} else if (defined(i) != null) {
+				written(avail, defined(i));
+			}
+		}
+		return avail;
+	}
+
+	//temporary t gets a new value: it no longer holds a location's value, nor is it the same pointer
+	private void written(Available avail, String t) {
+		BitSet held = holders.get(t);
+		if (held != null) {
+			for (int l = held.nextSetBit(0); l >= 0; l = held.nextSetBit(l + 1)) {
+				if (t.equals(avail.get(l))) {
+					avail.has.clear(l);
+				}
+			}
+		}
+		BitSet through = throughPointer.get(t);
+		if (through != null) {
+			avail.has.andNot(through);
+		}
+	}
+
+	/**
+	 * Live locations: remove stores that are overwritten before anything can read them
+	 */
+	private void removeDeadStores() {
+		int numBlocks = leaders.size() - 1;
+		BitSet atExit = new BitSet();
+		for (int l = 0; l < locations.size(); l++) {
+			if (!isLocal(locations.get(l)) || offset(locations.get(l)) > 0) {
+				atExit.set(l);
+			}
+		}
+
+		List<BitSet> in = new ArrayList<BitSet>();
+		for (int b = 0; b < numBlocks; b++) {
+			in.add(new BitSet());
+		}
+		boolean[] dead = new boolean[code.size()];
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b = numBlocks - 1; b >= 0; b--) {
+				BitSet i = live(b, liveOut(b, in, atExit), null);
+				if (!i.equals(in.get(b))) {
+					in.set(b, i);
+					changed = true;
+				}
+			}
+		}
+		for (int b = 0; b < numBlocks; b++) {
+			live(b, liveOut(b, in, atExit), dead);
+		}
+
+		List<Instruction> kept = new ArrayList<Instruction>();
+		for (int idx = 0; idx < code.size(); idx++) {
+			if (!dead[idx]) {
+				kept.add(code.get(idx));
+			}
+		}
+		code = kept;
+	}
+
+	private BitSet liveOut(int b, List<BitSet> in, BitSet atExit) {
+		BitSet out = new BitSet();
+		if (exits[b]) {
+			out.or(atExit);
+		}
+		for (int s : succs.get(b)) {
+			out.or(in.get(s));
+		}
+		return out;
+	}
+
+	/**
+	 * @param live locations that may be read after the block
+	 * @param dead if not null, where to mark the block's dead stores
+	 * @return locations that may be read from the start of the block on
+	 */
+	private BitSet live(int b, BitSet live, boolean[] dead) {
+		for (int idx = leaders.get(b + 1) - 1; idx >= leaders.get(b); idx--) {
+			Instruction i = code.get(idx);
+			int loc = accessed[idx];
+			String d = defined(i);
+			if (d != null && throughPointer.containsKey(d)) {
+				//an access through d before this point is to some other location
+				live.or(throughPointer.get(d));
+			}
+			if (i.isStore() && loc >= 0) {
+				if (!live.get(loc) && dead != null) {
+					dead[idx] = true;
+				}
+				live.clear(loc);
+			} else if (i.isLoad() && loc >= 0) {
+				live.or(aliases(loc));
+				live.set(loc);
+			} else if (i instanceof Jr) {
+				live.or(reachable);
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * The alias query: the locations other than <code>loc</code> that it may overlap
+	 */
+	private BitSet aliases(int loc) {
+		String p = pointer(locations.get(loc));
+		if (p == null) {
+			//different variables never overlap; a pointer may reach this one
+			return reachable.get(loc) ? throughAnyPointer : new BitSet();
+		}
+		//anything a pointer reaches, except other offsets from the same pointer
+		BitSet a = pointerAliases.get(p);
+		if (a == null) {
+			a = (BitSet) reachable.clone();
+			a.andNot(throughPointer.get(p));
+			pointerAliases.put(p, a);
+		}
+		return a;
+	}
+
+	/**
+	 * Drop the LAs of globals that are no longer loaded or stored
+	 */
+	private void removeUnusedAddresses() {
+		Set<String> used = new HashSet<String>();
+		for (Instruction i : code) {
+			used.add(i.getSrc1());
+			used.add(i.getSrc2());
+			if (i.isStore()) {
+				used.add(i.getDest());
+			}
+		}
+		code.removeIf(i -> i instanceof La && addresses.containsKey(i.getDest()) && !used.contains(i.getDest()));
+	}
+
+	/**
+	 * @return the location a load or store accesses, or null if it is not tracked
+	 */
+	private String location(Instruction i) {
+		if (!i.isLoad() && !i.isStore()) {
+			return null;
+		}
+		String base = i.getSrc1();
+		if (base.equals("fp")) {
+			return "fp " + i.getLabel();
+		} else if (addresses.containsKey(base)) {
+			return "@" + addresses.get(base) + " " + i.getLabel();
+		} else if (isTemp(base)) {
+			return "*" + base + " " + i.getLabel();
+		}
+		return null; //sp
+	}
+
+	private boolean isLocal(String loc) {
+		return loc.startsWith("fp ");
+	}
+
+	private int offset(String loc) {
+		return Integer.parseInt(loc.substring(loc.indexOf(' ') + 1));
+	}
+
+	/**
+	 * @return the base temporary of an access through a pointer, or null
+	 */
+	private String pointer(String loc) {
+		return loc.startsWith("*") ? loc.substring(1, loc.indexOf(' ')) : null;
+	}
+
+	/**
+	 * @return the register an instruction writes, or null (a store's DEST is the value it stores)
+	 */
+	private static String defined(Instruction i) {
+		return i.isStore() ? null : i.getDest();
+	}
+
+	private static boolean isTemp(String s) {
+		return s != null && s.length() > 1 && Character.isDigit(s.charAt(1))
+				&& (s.charAt(0) == CodeGenerator.intTempPrefix || s.charAt(0) == CodeGenerator.floatTempPrefix);
+	}
+}
@@ -88,4 +88,56 @@ public abstract class Instruction {
     public String getDest() {
         return this.dest;
     }
+
+	/**
+	 * @return first source operand (the base register of a load or store), or null
+	 */
+	public String getSrc1() {
+		return this.src1;
+	}
+
+	/**
+	 * @return second source operand (the immediate of an ADDI), or null
+	 */
+	public String getSrc2() {
+		return this.src2;
+	}
+
+	/**
+	 * @return the label, address or offset the instruction holds, or null
+	 */
+	public String getLabel() {
+		return this.label;
+	}
+
+	/**
+	 * @return true if the instruction reads memory (LW, FLW)
+	 */
+	public boolean isLoad() {
+		return oc == OpCode.LW || oc == OpCode.FLW;
+	}
+
+	/**
+	 * @return true if the instruction writes memory (SW, FSW)
+	 */
+	public boolean isStore() {
+		return oc == OpCode.SW || oc == OpCode.FSW;
+	}
+
+	/**
+	 * @return true if control does not simply fall through to the next instruction
+	 *         (branches, J, RET, HALT), so the next instruction starts a basic block
+	 */
+	public boolean endsBlock() {
+		if (oc == null) { //labels and blanks
+			return false;
+		}
+		switch (oc) {
+			case BEQ: case BGE: case BGT: case BLE: case BLT: case BNE:
+			case J: case RET: case HALT:
+				return true;
+			default:
+				return false;
+		}
+	}
 }
\ No newline at end of file
@@ -2,16 +2,13 @@ package assembly.instructions;
 
 public class Malloc extends Instruction {
 
-    String src;
-    String dst;
-
     /**
      * Models the magic instruction MALLOC
      */
     public Malloc(String src, String dst) {
         super();
-        this.src = src;
-        this.dst = dst;
+        this.src1 = src;
+        this.dest = dst;
         this.oc = OpCode.MALLOC;
     }
 
@@ -19,6 +16,6 @@ public class Malloc extends Instruction {
      * @return "HALT"
      */
     public String toString() {
-        return String.valueOf(this.oc) + " " + dst + ", " + src;
+        return String.valueOf(this.oc) + " " + dest + ", " + src1;
     }
 }
\ No newline at end of file
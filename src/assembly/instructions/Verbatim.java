@@ -0,0 +1,22 @@
+package assembly.instructions;
+
+/**
+ * A line of assembly that is already text, such as code read back from the
+ * function cache. It is printed exactly as given.
+ */
+public class Verbatim extends Instruction {
+
+    private String text;
+
+    public Verbatim(String text) {
+        super();
+        this.text = text;
+    }
+
+    /**
+     * @return the text, unchanged
+     */
+    public String toString() {
+        return text;
+    }
+}
@@ -3,7 +3,7 @@ package ast;
 import compiler.Scope;
 
 import ast.visitor.ASTVisitor;
-import compiler.Compiler;
+import compiler.SymbolTable;
 
 public class FreeNode extends AbstractCallNode {
 
@@ -11,8 +11,8 @@ public class FreeNode extends AbstractCallNode {
     String funcName;
     Scope.FunctionSymbolTableEntry ste;
 
-    public FreeNode(ExpressionNode arg) {
-        this.ste = (Scope.FunctionSymbolTableEntry) Compiler.symbolTable.getFunctionSymbol(funcName);
+    public FreeNode(ExpressionNode arg, SymbolTable st) {
+        this.ste = (Scope.FunctionSymbolTableEntry) st.getFunctionSymbol(funcName);
         this.arg = arg;
         this.type = new Scope.Type(Scope.InnerType.VOID); //set this to void
     }
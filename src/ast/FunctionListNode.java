@@ -57,6 +57,15 @@ public class FunctionListNode implements ASTNode {
 		functions.add(f);
 	}
 	
+	/**
+	 * A function list node holding the given list of functions, as collected by the parser
+	 * 
+	 * @param fl The functions, in order
+	 */
+	public FunctionListNode(List<FunctionNode> fl) {
+		functions = fl;
+	}
+	
 	@Override
 	public <R> R accept(ASTVisitor<R> visitor) {
 		return visitor.visit(this);
@@ -9,6 +9,10 @@ public class FunctionNode implements StatementNode {
     private String funcName;
 
     private LocalScope scope;
+
+    //indexes of the function's first and last token in the parser's token stream
+    private int firstToken;
+    private int lastToken;
     
     public FunctionNode(StatementListNode funcBody, String funcName, LocalScope scope) {
         this.funcBody = funcBody;
@@ -36,5 +40,18 @@ public class FunctionNode implements StatementNode {
     public LocalScope getScope() {
         return scope;
     }
+
+    public void setTokenRange(int firstToken, int lastToken) {
+        this.firstToken = firstToken;
+        this.lastToken = lastToken;
+    }
+
+    public int getFirstToken() {
+        return firstToken;
+    }
+
+    public int getLastToken() {
+        return lastToken;
+    }
     
 }
\ No newline at end of file
@@ -3,7 +3,7 @@ package ast;
 import compiler.Scope;
 
 import ast.visitor.ASTVisitor;
-import compiler.Compiler;
+import compiler.SymbolTable;
 
 public class MallocNode extends AbstractCallNode {
 
@@ -11,8 +11,8 @@ public class MallocNode extends AbstractCallNode {
     String funcName;
     Scope.FunctionSymbolTableEntry ste;
 
-    public MallocNode(ExpressionNode arg) {
-        this.ste = (Scope.FunctionSymbolTableEntry) Compiler.symbolTable.getFunctionSymbol(funcName);
+    public MallocNode(ExpressionNode arg, SymbolTable st) {
+        this.ste = (Scope.FunctionSymbolTableEntry) st.getFunctionSymbol(funcName);
         this.arg = arg;
         this.type = new Scope.Type(Scope.InnerType.INFER); //set this to infer
     }
@@ -57,6 +57,15 @@ public class StatementListNode implements ASTNode {
 		statements.add(s);
 	}
 	
+	/**
+	 * A statement list node holding the given list of statements, as collected by the parser
+	 * 
+	 * @param sl The statements, in order
+	 */
+	public StatementListNode(List<StatementNode> sl) {
+		statements = sl;
+	}
+	
 	@Override
 	public <R> R accept(ASTVisitor<R> visitor) {
 		return visitor.visit(this);
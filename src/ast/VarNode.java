@@ -2,7 +2,7 @@ package ast;
 
 import ast.visitor.ASTVisitor;
 import compiler.Scope.SymbolTableEntry;
-import compiler.Compiler;
+import compiler.SymbolTable;
 
 /**
  * A node for variables
@@ -15,9 +15,9 @@ public class VarNode extends ExpressionNode {
 	private String id;
 	private SymbolTableEntry ste;
 	
-	public VarNode(String id) {
+	public VarNode(String id, SymbolTable st) {
 		this.setId(id);
-		setSymbol(Compiler.symbolTable.getSymbolTableEntry(id));
+		setSymbol(st.getSymbolTableEntry(id));
 		setType(ste.getType());
 	}
 
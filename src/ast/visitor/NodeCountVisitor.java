@@ -0,0 +1,152 @@
+package ast.visitor;
+
+import ast.ASTNode;
+import ast.AddrOfNode;
+import ast.AssignNode;
+import ast.BinaryOpNode;
+import ast.CallNode;
+import ast.CondNode;
+import ast.FloatLitNode;
+import ast.FreeNode;
+import ast.FunctionListNode;
+import ast.FunctionNode;
+import ast.IfStatementNode;
+import ast.IntLitNode;
+import ast.MallocNode;
+import ast.PtrDerefNode;
+import ast.ReadNode;
+import ast.ReturnNode;
+import ast.StatementListNode;
+import ast.TypeCastNode;
+import ast.UnaryOpNode;
+import ast.VarNode;
+import ast.WhileNode;
+import ast.WriteNode;
+
+/**
+ * Counts the nodes of an AST (or of one function's subtree)
+ */
+public class NodeCountVisitor extends AbstractASTVisitor<Void> {
+
+	int count;
+
+	public NodeCountVisitor() {count = 0;}
+
+	@Override
+	public Void run(ASTNode node) {
+		count = 0;
+		return node.accept(this);
+	}
+
+	/**
+	 * @return number of nodes visited by the last <code>run</code>
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	protected void preprocess(VarNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(IntLitNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(FloatLitNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(BinaryOpNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(UnaryOpNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(AssignNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(StatementListNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(ReadNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(WriteNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(CondNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(IfStatementNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(WhileNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(ReturnNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(FunctionNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(FunctionListNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(CallNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(PtrDerefNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(AddrOfNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(MallocNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(FreeNode node) {
+		count++;
+	}
+
+	@Override
+	protected void preprocess(TypeCastNode node) {
+		count++;
+	}
+}
@@ -0,0 +1,14 @@
+package compiler;
+
+/**
+ * Thrown when the program cannot be compiled (e.g. a declaration error).
+ * The message is the diagnostic that stopped the compilation.
+ */
+public class CompileError extends Error {
+
+	private static final long serialVersionUID = 1L;
+
+	public CompileError(String message) {
+		super(message);
+	}
+}
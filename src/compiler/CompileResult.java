@@ -0,0 +1,70 @@
+package compiler;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Outcome of one {@link Compiler#compile} call: the assembly (if compilation
+ * got that far), diagnostics, and the statistics when they were requested.
+ */
+public class CompileResult {
+
+	private String assembly;
+	private List<String> diagnostics;
+	private CompileStats stats;
+	private Throwable failure;
+
+	CompileResult() {
+		diagnostics = new LinkedList<String>();
+	}
+
+	/**
+	 * @return ".section .text" and ".section .strings" exactly as <code>main</code> prints them,
+	 *         or null if compilation failed
+	 */
+	public String getAssembly() {
+		return assembly;
+	}
+
+	void setAssembly(String assembly) {
+		this.assembly = assembly;
+	}
+
+	/**
+	 * @return errors and warnings, in the order they were found
+	 */
+	public List<String> getDiagnostics() {
+		return diagnostics;
+	}
+
+	void addDiagnostic(String diagnostic) {
+		diagnostics.add(diagnostic);
+	}
+
+	/**
+	 * @return statistics for the compilation, or null if they were not requested
+	 */
+	public CompileStats getStats() {
+		return stats;
+	}
+
+	void setStats(CompileStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return what stopped the compilation: a {@link CompileError} for errors in the program,
+	 *         anything else is a bug in the compiler. null if compilation succeeded
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	void setFailure(Throwable failure) {
+		this.failure = failure;
+	}
+
+	public boolean succeeded() {
+		return failure == null;
+	}
+}
@@ -0,0 +1,228 @@
+package compiler;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running compiler, so that a compile does not pay for JVM start-up, class
+ * loading and ANTLR's ATN deserialization every time. The DFA caches that ANTLR
+ * builds while parsing are static in the generated lexer and parser, so every
+ * request after the first one parses with warm caches.
+ *
+ * The server listens on a loopback port (default {@value #DEFAULT_PORT}) and runs
+ * each connection on its own thread. A request is a sequence of lines ended by an
+ * empty line:
+ *
+ * <pre>
+ * token
+ * working directory of the client
+ * file the compiler's stdout goes to
+ * argument
+ * ...
+ * </pre>
+ *
+ * The arguments are the ones <code>Compiler.main</code> takes. The reply is whatever
+ * the compiler wrote to stderr, followed by a last line <code>status N</code>.
+ * <code>runme</code> talks to the server with bash's <code>/dev/tcp</code> when one is running.
+ *
+ * Any local user can connect to the port, and the server writes files as the user
+ * who started it. So at start-up it writes a random token to {@link #TOKEN_FILE},
+ * which only that user can read, and refuses requests that do not begin with it.
+ * Files the compile writes (its output, <code>-o</code>, <code>--cache</code>,
+ * <code>--batch</code>, <code>--stats=</code>) must also be inside the client's
+ * working directory once symbolic links are resolved, and the output file is not
+ * written through a link.
+ */
+public class CompileServer {
+
+	public static final int DEFAULT_PORT = 7319;
+
+	/**
+	 * Where the server puts its token, in a directory only its user can open
+	 */
+	public static final Path TOKEN_FILE = Paths.get(System.getProperty("user.home"), ".microc", "server-token");
+
+	//options whose value is a file or directory the compile writes
+	private static final List<String> OUTPUT_OPTIONS = List.of("-o", "--cache", "--batch");
+
+	private static byte[] token;
+
+	public static void main(String args[]) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+		token = writeToken();
+
+		//JDK 17 has no virtual threads; a cached pool gives each connection its own thread
+		ExecutorService pool = Executors.newCachedThreadPool();
+
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.err.println("Compile server listening on " + server.getLocalSocketAddress());
+		while (true) {
+			Socket client = server.accept();
+			pool.execute(() -> handle(client));
+		}
+	}
+
+	/**
+	 * Make a new random token, and write it where only this user can read it
+	 *
+	 * @return the token, as the client sends it
+	 */
+	private static byte[] writeToken() throws IOException {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		String hex = HexFormat.of().formatHex(bytes);
+
+		Path dir = TOKEN_FILE.getParent();
+		Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+
+		//written under a new name and moved over the old token, so it is never readable by others
+		Path tmp = Files.createTempFile(dir, "token", null,
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		Files.write(tmp, (hex + "\n").getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, TOKEN_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return hex.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void handle(Socket client) {
+		try (Socket s = client) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			List<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null && !line.isEmpty()) {
+				lines.add(line);
+			}
+
+			ByteArrayOutputStream err = new ByteArrayOutputStream();
+			int status = compile(lines, new PrintStream(err, true, StandardCharsets.UTF_8));
+
+			OutputStream reply = s.getOutputStream();
+			reply.write(err.toByteArray());
+			reply.write(("status " + status + "\n").getBytes(StandardCharsets.UTF_8));
+			reply.flush();
+		} catch (IOException e) {
+			//the client went away; nothing to reply to
+			System.err.println("Connection from " + client.getRemoteSocketAddress() + " dropped: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Run one request
+	 *
+	 * @param request token, working directory, output file, then the compiler's arguments
+	 * @param err where the compiler's stderr goes
+	 * @return exit status of the compile
+	 */
+	private static int compile(List<String> request, PrintStream err) {
+		if (request.isEmpty() || !MessageDigest.isEqual(token, request.get(0).getBytes(StandardCharsets.UTF_8))) {
+			err.println("Bad token: the request must start with the contents of " + TOKEN_FILE);
+			return 2;
+		}
+		if (request.size() < 3) {
+			err.println("Malformed request: expected working directory and output file");
+			return 2;
+		}
+		Path cwd = Paths.get(request.get(1));
+		if (!cwd.isAbsolute()) {
+			err.println("Malformed request: working directory " + cwd + " is not absolute");
+			return 2;
+		}
+		try {
+			cwd = cwd.toRealPath();
+		} catch (IOException e) {
+			err.println("Malformed request: cannot open working directory " + cwd + ": " + e);
+			return 2;
+		}
+		List<String> written = new ArrayList<String>();
+		written.add(request.get(2));
+		List<String> argList = request.subList(3, request.size());
+		for (int i = 0; i < argList.size(); i++) {
+			String arg = argList.get(i);
+			if (OUTPUT_OPTIONS.contains(arg) && i + 1 < argList.size()) {
+				written.add(argList.get(i + 1));
+			} else if (arg.startsWith("--stats=")) {
+				written.add(arg.substring("--stats=".length()));
+			}
+		}
+		for (String w : written) {
+			if (!inside(cwd, w)) {
+				err.println("Refusing to write " + w + ": it is outside " + cwd);
+				return 2;
+			}
+		}
+		Path outFile = cwd.resolve(request.get(2));
+		String args[] = argList.toArray(new String[0]);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int status;
+		try {
+			status = Compiler.run(args, cwd, new PrintStream(out, true, StandardCharsets.UTF_8), err);
+		} catch (RuntimeException | Error e) {
+			//what main would have died with
+			err.print("Exception in thread \"main\" ");
+			e.printStackTrace(err);
+			status = 1;
+		}
+
+		try {
+			Files.write(outFile, out.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			err.println("Cannot write " + outFile + ": " + e);
+			status = 1;
+		}
+		return status;
+	}
+
+	/**
+	 * Whether writing <code>name</code> stays inside <code>cwd</code> once links are resolved.
+	 * The directory it goes in is created first, after checking the part of it that exists.
+	 *
+	 * @param cwd real path of the client's working directory
+	 */
+	private static boolean inside(Path cwd, String name) {
+		Path path = cwd.resolve(name).normalize();
+		Path parent = path.getParent();
+		if (parent == null) {
+			return false;
+		}
+		try {
+			Path existing = parent;
+			while (!Files.exists(existing)) {
+				existing = existing.getParent();
+			}
+			if (!existing.toRealPath().startsWith(cwd)) {
+				return false;
+			}
+			Files.createDirectories(parent);
+			//an existing file or directory may itself be a link out
+			Path real = Files.exists(path) ? path.toRealPath() : parent.toRealPath();
+			return real.startsWith(cwd);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
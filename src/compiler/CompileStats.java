@@ -0,0 +1,225 @@
+package compiler;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import assembly.instructions.Instruction;
+import assembly.instructions.Label;
+import ast.FunctionNode;
+import ast.visitor.NodeCountVisitor;
+
+/**
+ * Statistics collected with <code>--stats</code>: wall time and allocated bytes of
+ * each whole-program phase, and for every function the cost of generating its code
+ * and the shape of that code.
+ *
+ * Allocation is counted per thread. Functions are generated on worker threads, so
+ * each per-function generator measures its own work ({@link #startWork}, {@link #endWork})
+ * and {@link #addFunctions} adds that to the phase running on the calling thread.
+ *
+ * There is no register allocator in this compiler: every temporary a function uses
+ * is saved in its prologue and restored in its epilogue, so the report gives the
+ * number of temporaries and no separate save or restore counts.
+ *
+ * The report is tab separated, one record per line, with the record kind first:
+ *
+ * <pre>
+ * phase     name  ns  bytes
+ * function  name  ns  bytes  ast_nodes  instructions  blocks  temps  loads  stores
+ * </pre>
+ *
+ * Every record is also committed as a JFR event ({@link PhaseEvent}, {@link FunctionEvent}),
+ * so a recording made with <code>-XX:StartFlightRecording</code> carries the same numbers.
+ */
+public class CompileStats {
+
+	private static class Phase {
+		String name;
+		long nanos;
+		long bytes;
+	}
+
+	private static class Function {
+		String name;
+		long nanos;
+		long bytes;
+		int astNodes;
+		int instructions;
+		int blocks;
+		int temps;
+		int loads;
+		int stores;
+	}
+
+	private List<Phase> phases;
+	private List<Function> functions;
+
+	private com.sun.management.ThreadMXBean threads;
+
+	private Phase phase;
+	private PhaseEvent phaseEvent;
+	private long phaseStart;
+	private long phaseBytes;
+	private long phaseThread;
+	//bytes other threads allocated for the current phase (-1 if the JVM cannot tell)
+	private long otherBytes;
+
+	//work done for this generator on one thread, see startWork
+	private long workStart;
+	private long workBytes;
+	private long workThread;
+
+	private FunctionEvent functionEvent;
+	private long functionStart;
+	private long functionBytes;
+
+	public CompileStats() {
+		phases = new ArrayList<Phase>();
+		functions = new ArrayList<Function>();
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	}
+
+	/**
+	 * @return bytes allocated so far by the current thread, or -1 if the JVM cannot tell
+	 */
+	private long allocatedBytes() {
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return -1;
+		}
+		return threads.getCurrentThreadAllocatedBytes();
+	}
+
+	private static long delta(long start, long end) {
+		return (start < 0 || end < 0) ? -1 : end - start;
+	}
+
+	public void startPhase(String name) {
+		phase = new Phase();
+		phase.name = name;
+		phaseEvent = new PhaseEvent();
+		phaseEvent.begin();
+		phaseBytes = allocatedBytes();
+		phaseThread = Thread.currentThread().getId();
+		otherBytes = 0;
+		phaseStart = System.nanoTime();
+	}
+
+	public void endPhase() {
+		phase.nanos = System.nanoTime() - phaseStart;
+		phase.bytes = delta(phaseBytes, allocatedBytes());
+		phase.bytes = (phase.bytes < 0 || otherBytes < 0) ? -1 : phase.bytes + otherBytes;
+		phases.add(phase);
+
+		phaseEvent.end();
+		phaseEvent.phase = phase.name;
+		phaseEvent.allocated = phase.bytes;
+		phaseEvent.commit();
+	}
+
+	/**
+	 * Called when the code generator starts on a function
+	 */
+	public void startFunction() {
+		functionEvent = new FunctionEvent();
+		functionEvent.begin();
+		functionBytes = allocatedBytes();
+		functionStart = System.nanoTime();
+	}
+
+	/**
+	 * Called with the finished code of a function
+	 *
+	 * @param node the function
+	 * @param code all of its code, prologue and epilogue included
+	 * @param temps number of temporaries the function uses
+	 */
+	public void endFunction(FunctionNode node, Collection<Instruction> code, int temps) {
+		Function f = new Function();
+		f.nanos = System.nanoTime() - functionStart;
+		f.bytes = delta(functionBytes, allocatedBytes());
+		functionEvent.end();
+
+		f.name = node.getFuncName();
+		NodeCountVisitor ncv = new NodeCountVisitor();
+		ncv.run(node);
+		f.astNodes = ncv.getCount();
+		f.temps = temps;
+
+		//a block starts at the first instruction, at a label (or run of labels) and after a jump
+		boolean leader = true;
+		Instruction prev = null;
+		for (Instruction i : code) {
+			if (i instanceof Label) {
+				if (!(prev instanceof Label)) {
+					f.blocks++;
+				}
+				leader = false;
+			} else {
+				f.instructions++;
+				if (leader) {
+					f.blocks++;
+				}
+				leader = i.endsBlock();
+				if (i.isLoad()) {
+					f.loads++;
+				} else if (i.isStore()) {
+					f.stores++;
+				}
+			}
+			prev = i;
+		}
+		functions.add(f);
+
+		functionEvent.function = f.name;
+		functionEvent.allocated = f.bytes;
+		functionEvent.astNodes = f.astNodes;
+		functionEvent.instructions = f.instructions;
+		functionEvent.blocks = f.blocks;
+		functionEvent.temps = f.temps;
+		functionEvent.loads = f.loads;
+		functionEvent.stores = f.stores;
+		functionEvent.commit();
+	}
+
+	/**
+	 * Called when a per-function generator starts its work, on the thread doing it
+	 */
+	public void startWork() {
+		workThread = Thread.currentThread().getId();
+		workStart = allocatedBytes();
+	}
+
+	/**
+	 * Called when that work is done, on the same thread
+	 */
+	public void endWork() {
+		workBytes = delta(workStart, allocatedBytes());
+	}
+
+	/**
+	 * Append the function records of <code>other</code> (collected by a per-function code generator),
+	 * and count what its work allocated in the current phase
+	 */
+	public void addFunctions(CompileStats other) {
+		functions.addAll(other.functions);
+		//work done on this thread is already in the phase's own count
+		if (other.workThread != phaseThread && otherBytes >= 0) {
+			otherBytes = (other.workBytes < 0) ? -1 : otherBytes + other.workBytes;
+		}
+	}
+
+	public void print(PrintStream out) {
+		out.println("#phase\tname\tns\tbytes");
+		for (Phase p : phases) {
+			out.println("phase\t" + p.name + "\t" + p.nanos + "\t" + p.bytes);
+		}
+		out.println("#function\tname\tns\tbytes\tast_nodes\tinstructions\tblocks\ttemps\tloads\tstores");
+		for (Function f : functions) {
+			out.println("function\t" + f.name + "\t" + f.nanos + "\t" + f.bytes + "\t" + f.astNodes + "\t" + f.instructions
+					+ "\t" + f.blocks + "\t" + f.temps + "\t" + f.loads + "\t" + f.stores);
+		}
+	}
+}
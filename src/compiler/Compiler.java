@@ -1,38 +1,189 @@
 package compiler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
+import assembly.AsmWriter;
+import assembly.BlockProfile;
 import assembly.CodeGenerator;
 import assembly.CodeObject;
+import assembly.instructions.Instruction;
 import ast.ASTNode;
 import ast.visitor.PrintVisitor;
 import ast.visitor.TypeVisitor;
 
 import java.util.Collection;
 
+/**
+ * Compiles uC programs. All of the state of a compilation (symbol table, code
+ * generator, statistics) is created by {@link #compile}, so one Compiler can be
+ * used for any number of programs, and separate Compilers can run in parallel.
+ *
+ * <code>main</code> compiles one file to stdout (or with <code>-o &lt;file&gt;</code>, streams it
+ * into the file), or with <code>--batch &lt;dir&gt;</code>
+ * compiles every file given into <code>dir</code> on a work-stealing pool. With
+ * <code>--cache &lt;dir&gt;</code>, functions that have not changed since the last
+ * compile are not generated again. <code>--unit</code> compiles to relocatable units
+ * instead of programs, and <code>--link</code> links units into a program (see {@link Linker}).
+ */
 public class Compiler {
 
-	static public SymbolTable symbolTable = new SymbolTable();
+	private boolean instrument;
+	private BlockProfile profile;
+	private boolean stats;
+	private PrintStream log;
+	private Path output;
+	private Path cacheDir;
+	private boolean unit;
 
 	public Compiler() {
-		
+		instrument = false;
+		profile = null;
+		stats = false;
+		log = new PrintStream(OutputStream.nullOutputStream());
 	}
 
-	public static void main(String args[]) {
-		
-		
+	/**
+	 * Add block counters to the generated code (see {@link CodeGenerator#setInstrumentation})
+	 */
+	public void setInstrument(boolean instrument) {
+		this.instrument = instrument;
+	}
+
+	/**
+	 * Use block counts from an instrumented run for code layout
+	 */
+	public void setProfile(BlockProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Collect {@link CompileStats}; they are returned with the result
+	 */
+	public void setStats(boolean stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Where the symbol table and the code generator's debugging output go.
+	 * By default it is discarded.
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+
+	/**
+	 * Stream the assembly into <code>output</code> while it is generated, instead of
+	 * returning it with the result. Only the functions still being generated are
+	 * held in memory. The file is removed again if compilation fails.
+	 */
+	public void setOutput(Path output) {
+		this.output = output;
+	}
+
+	/**
+	 * Keep the code of every function in <code>cacheDir</code>, and reuse it for
+	 * functions that have not changed (see {@link FunctionCache})
+	 */
+	public void setCache(Path cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Compile to a relocatable unit for the {@link Linker} instead of a whole program.
+	 * A unit starts with a header naming what it defines and what it needs:
+	 *
+	 * <pre>
+	 * .unit
+	 * .export &lt;function&gt; &lt;signature&gt;   (functions defined here)
+	 * .import &lt;function&gt; &lt;signature&gt;   (functions declared but not defined)
+	 * .global &lt;name&gt; &lt;type&gt;
+	 * .string &lt;name&gt; &lt;literal&gt;
+	 * </pre>
+	 *
+	 * followed by <code>.section .text</code> and the code of its functions, which
+	 * refers to globals and strings by name. Units cannot be instrumented or
+	 * laid out with a profile, since their block ids are not the program's.
+	 */
+	public void setUnit(boolean unit) {
+		this.unit = unit;
+	}
+
+	public CompileResult compile(String source) {
+		return compile(CharStreams.fromString(source));
+	}
+
+	/**
+	 * Compile one program
+	 *
+	 * @param input source of the program
+	 * @return the assembly and diagnostics. Errors in the program (and bugs in the
+	 *         compiler) do not escape, they are returned as the result's failure
+	 */
+	public CompileResult compile(CharStream input) {
+		CompileResult result = new CompileResult();
+		CompileStats cs = stats ? new CompileStats() : null;
+		result.setStats(cs);
+
+		//syntax errors are diagnostics like any other, rather than console output
+		List<String> syntaxErrors = new ArrayList<String>();
+		BaseErrorListener listener = new BaseErrorListener() {
+			@Override
+			public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+					int charPositionInLine, String msg, RecognitionException e) {
+				syntaxErrors.add("line " + line + ":" + charPositionInLine + " " + msg);
+			}
+		};
+
+		MicroCLexer lexer = new MicroCLexer(input);
+		lexer.removeErrorListeners();
+		lexer.addErrorListener(listener);
+
+		MicroCParser parser = new MicroCParser(new CommonTokenStream(lexer));
+		AsmWriter writer = null;
+
 		try {
-			MicroCLexer lexer = new MicroCLexer(CharStreams.fromFileName(args[0]));
-			
-			MicroCParser parser = new MicroCParser(new CommonTokenStream(lexer));
-
-			parser.setSymbolTable(symbolTable);
-			
-			parser.program(); //parse the program to build the ast
-			
+			if (cs != null) {
+				cs.startPhase("parse");
+			}
+
+			parse(parser, listener, log); //parse the program to build the ast and symbol table
+
+			if (cs != null) {
+				cs.endPhase();
+			}
+
+			SymbolTable symbolTable = parser.getSymbolTable();
+
 			//Print out the symbol table. Helpful for debugging
 			symbolTable.printTable();
 
@@ -46,27 +197,175 @@ public class Compiler {
 			// pv.run(ast);
 
 			CodeGenerator cg = new CodeGenerator();
+			cg.setLog(log);
+			if (unit) {
+				cg.setRelocatable();
+			}
+			if (instrument) {
+				//block counters go right after the last global variable, and the marker
+				//printed in front of them after the last string
+				GlobalScope gs = (GlobalScope) symbolTable.getGlobalScope();
+				gs.addSymbol(new Scope.Type(Scope.InnerType.STRING), "$counts", "\"" + BlockProfile.MARKER + "\"");
+				cg.setInstrumentation(gs.getGlobalBase(), gs.getSymbolTableEntry("$counts").getAddress());
+			}
+			if (profile != null) {
+				cg.setProfile(profile);
+			}
+			FunctionCache cache = null;
+			if (cacheDir != null) {
+				try {
+					cache = new FunctionCache(cacheDir, parser.getTokenStream());
+					cg.setCache(cache);
+				} catch (IOException e) {
+					//compile without it
+					result.addDiagnostic("Warning: cannot use cache " + cacheDir + ": " + e);
+				}
+			}
+			if (output != null) {
+				//stream: each function is written out as soon as it is generated
+				writer = new AsmWriter(FileChannel.open(output, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+				if (unit) {
+					for (String line : unitHeader(symbolTable)) {
+						writer.writeLine(line);
+					}
+				}
+				writer.writeLine(".section .text");
+				cg.setEmitter(writer);
+			}
+			if (cs != null) {
+				cg.setStats(cs);
+				cs.startPhase("codegen");
+			}
 			CodeObject co = cg.run(ast);
+			if (cs != null) {
+				cs.endPhase();
+			}
+			if (cache != null) {
+				log.println(";Function cache: " + cache.getHits() + " reused, " + cache.getMisses() + " generated");
+			}
 
-			// Print out ".section .text"
-			System.out.println(".section .text");
+			if (profile != null && profile.getNumBlocks() != cg.getNumBlocks()) {
+				result.addDiagnostic("Warning: profile has " + profile.getNumBlocks() + " blocks but program has "
+						+ cg.getNumBlocks() + "; was it collected from a different version of the source?");
+			}
 
-			// Print out the code. Runme script will redirect as necessary
-			System.out.println(co);
+			if (cs != null) {
+				cs.startPhase("emit");
+			}
 
-			//Print out strings
-			printStrings();
+			if (writer != null) {
+				if (!unit) {
+					writer.writeLine("");
+					for (String line : stringsSection(symbolTable)) {
+						writer.writeLine(line);
+					}
+				}
+				writer.close();
+			} else if (unit) {
+				//the strings are in the header; the Linker places them
+				StringBuilder sb = new StringBuilder();
+				for (String line : unitHeader(symbolTable)) {
+					sb.append(line).append("\n");
+				}
+				sb.append(".section .text\n");
+				for (Instruction i : co.getCode()) {
+					sb.append(i).append("\n");
+				}
+				result.setAssembly(sb.toString());
+			} else {
+				StringBuilder sb = new StringBuilder();
+				sb.append(".section .text\n");
+				sb.append(co).append("\n");
+				for (String line : stringsSection(symbolTable)) {
+					sb.append(line).append("\n");
+				}
+				result.setAssembly(sb.toString());
+			}
 
+			if (cs != null) {
+				cs.endPhase();
+			}
 		} catch (IOException e) {
-			System.out.println("File not found");
-			e.printStackTrace();
-			System.exit(1);
-		}		
+			result.setFailure(new UncheckedIOException(e));
+			result.addDiagnostic("Cannot write " + output + ": " + e);
+		} catch (CompileError e) {
+			//the message is already among the symbol table's errors
+			result.setFailure(e);
+		} catch (RuntimeException | Error e) {
+			result.setFailure(e);
+			result.addDiagnostic("Internal compiler error: " + e);
+		}
+
+		if (writer != null && !result.succeeded()) {
+			//do not leave half a program behind
+			try {
+				writer.close();
+				Files.deleteIfExists(output);
+			} catch (IOException e) {
+				result.addDiagnostic("Cannot remove " + output + ": " + e);
+			}
+		}
+
+		result.getDiagnostics().addAll(0, parser.getSymbolTable().getErrors());
+		result.getDiagnostics().addAll(0, syntaxErrors);
+		return result;
+	}
+
+	/**
+	 * Parse a program in two stages. The AST is built by the grammar actions, so the
+	 * parser does not build a parse tree, and it first runs with SLL prediction, bailing
+	 * out at the first syntax error. Only if that fails (a real syntax error, or input
+	 * that SLL cannot handle) is the program parsed again with full LL prediction and
+	 * normal error reporting and recovery, starting over with a fresh symbol table.
+	 *
+	 * @param parser parser over the program's tokens; its error listeners are replaced by <code>listener</code>
+	 * @param listener where syntax errors are reported
+	 * @param log where the symbol table prints
+	 */
+	public static void parse(MicroCParser parser, ANTLRErrorListener listener, PrintStream log) {
+		parser.setBuildParseTree(false);
+		parser.removeErrorListeners();
+
+		//hold the symbol table's output back until we know this parse is the one that counts
+		ByteArrayOutputStream sllLog = new ByteArrayOutputStream();
+		SymbolTable symbolTable = new SymbolTable();
+		symbolTable.setLog(new PrintStream(sllLog));
+		parser.setSymbolTable(symbolTable);
+		parser.setErrorHandler(new BailErrorStrategy());
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		try {
+			parser.program();
+			log.print(sllLog.toString());
+			symbolTable.setLog(log);
+			return;
+		} catch (ParseCancellationException e) {
+			//fall through to the LL parse
+		} catch (RuntimeException | Error e) {
+			//a declaration error (or a crash in an action), not a syntax error: SLL parsed fine up to here
+			log.print(sllLog.toString());
+			symbolTable.setLog(log);
+			throw e;
+		}
+
+		parser.getTokenStream().seek(0);
+		parser.reset();
+		symbolTable = new SymbolTable();
+		symbolTable.setLog(log);
+		parser.setSymbolTable(symbolTable);
+		parser.addErrorListener(listener);
+		parser.setErrorHandler(new DefaultErrorStrategy());
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		parser.program();
 	}
 
-	private static void printStrings() {
-		System.out.println();
-		System.out.println(".section .strings");
+	/**
+	 * @return the lines of the strings section, starting with the blank line before it
+	 */
+	private static List<String> stringsSection(SymbolTable symbolTable) {
+		List<String> lines = new ArrayList<String>();
+		lines.add("");
+		lines.add(".section .strings");
 
 		Scope g = symbolTable.getGlobalScope();
 
@@ -74,9 +373,310 @@ public class Compiler {
 		for (Scope.SymbolTableEntry ste : stes) {
 			if (ste.getType().type == Scope.InnerType.STRING) {
 				Scope.StringSymbolTableEntry sste = (Scope.StringSymbolTableEntry) ste;
-				System.out.println(String.format("0x%x", sste.getAddress()) + " " + sste.getValue());
+				lines.add(String.format("0x%x", sste.getAddress()) + " " + sste.getValue());
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the header of a unit (see {@link #setUnit}), ending with a blank line
+	 */
+	private static List<String> unitHeader(SymbolTable symbolTable) {
+		List<String> exports = new ArrayList<String>();
+		List<String> imports = new ArrayList<String>();
+		List<String> data = new ArrayList<String>();
+
+		for (Scope.SymbolTableEntry ste : symbolTable.getGlobalScope().getEntries()) {
+			if (ste instanceof Scope.FunctionSymbolTableEntry) {
+				Scope.FunctionSymbolTableEntry fste = (Scope.FunctionSymbolTableEntry) ste;
+				String line = fste.getName() + " " + Linker.signature(fste);
+				if (fste.isDefined()) {
+					exports.add(".export " + line);
+				} else {
+					imports.add(".import " + line);
+				}
+			} else if (ste instanceof Scope.StringSymbolTableEntry) {
+				data.add(".string " + ste.getName() + " " + ((Scope.StringSymbolTableEntry) ste).getValue());
+			} else {
+				data.add(".global " + ste.getName() + " " + ste.getType());
+			}
+		}
+
+		List<String> lines = new ArrayList<String>();
+		lines.add(".unit");
+		lines.addAll(exports);
+		lines.addAll(imports);
+		lines.addAll(data);
+		lines.add("");
+		return lines;
+	}
+
+	private static final String USAGE = "usage: Compiler [--instrument | --profile-use <profile>] [--unit] [--stats[=<file>]]"
+			+ " [--cache <dir>] [-o <file>] <input.uC>\n"
+			+ "       Compiler --batch <dir> [--instrument] [--unit] [--stats] [--cache <dir>] <input.uC>...\n"
+			+ "       Compiler --link [-o <file>] <unit.asm>...";
+
+	//options followed by a value
+	private static final Set<String> VALUE_OPTIONS = Set.of("--profile-use", "--batch", "-o", "--cache");
+
+	public static void main(String args[]) {
+		int status = run(args, Paths.get(""), System.out, System.err);
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	/**
+	 * Everything <code>main</code> does, with the output going to <code>out</code> and <code>err</code>
+	 * instead of the console. Bugs in the compiler are rethrown.
+	 *
+	 * @param cwd directory that relative paths in <code>args</code> are relative to
+	 * @return exit status
+	 */
+	public static int run(String args[], Path cwd, PrintStream out, PrintStream err) {
+
+		List<String> inputFiles = new ArrayList<String>();
+		boolean instrument = false;
+		String profileFile = null;
+		boolean stats = false;
+		String statsFile = null; //stats go to stderr unless --stats=<file>
+		String batchDir = null;
+		String outputFile = null; //assembly goes to stdout unless -o <file>
+		String cacheDir = null;
+		boolean unit = false;
+		boolean link = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if (VALUE_OPTIONS.contains(args[i]) && i + 1 == args.length) {
+				err.println(args[i] + " needs a value");
+				err.println(USAGE);
+				return 1;
+			}
+			switch (args[i]) {
+				case "--instrument":
+					instrument = true;
+					break;
+				case "--profile-use":
+					profileFile = args[++i];
+					break;
+				case "--stats":
+					stats = true;
+					break;
+				case "--batch":
+					batchDir = args[++i];
+					break;
+				case "-o":
+					outputFile = args[++i];
+					break;
+				case "--cache":
+					cacheDir = args[++i];
+					break;
+				case "--unit":
+					unit = true;
+					break;
+				case "--link":
+					link = true;
+					break;
+				case "": //runme passes along empty options
+					break;
+				default:
+					if (args[i].startsWith("--stats=")) {
+						stats = true;
+						statsFile = args[i].substring("--stats=".length());
+					} else {
+						inputFiles.add(args[i]);
+					}
+			}
+		}
+
+		if (inputFiles.isEmpty()) {
+			err.println("no input files");
+			err.println(USAGE);
+			return 1;
+		}
+		if (inputFiles.size() > 1 && batchDir == null && !link) {
+			err.println("only one input file can be compiled without --batch or --link");
+			err.println(USAGE);
+			return 1;
+		}
+		if (unit && (instrument || profileFile != null)) {
+			err.println("--unit cannot be used with --instrument or --profile-use");
+			return 1;
+		}
+		if (batchDir != null && profileFile != null) {
+			//a profile holds the block counts of one program
+			err.println("--batch cannot be used with --profile-use");
+			return 1;
+		}
+		if (link) {
+			return link(cwd, inputFiles, outputFile, out, err);
+		}
+		if (batchDir != null) {
+			return batch(cwd, batchDir, inputFiles, instrument, stats, unit,
+					cacheDir == null ? null : cwd.resolve(cacheDir), err);
+		}
+
+		try {
+			Compiler compiler = new Compiler();
+			compiler.setLog(out);
+			compiler.setInstrument(instrument);
+			compiler.setStats(stats);
+			compiler.setUnit(unit);
+			if (outputFile != null) {
+				compiler.setOutput(cwd.resolve(outputFile));
+			}
+			if (cacheDir != null) {
+				compiler.setCache(cwd.resolve(cacheDir));
+			}
+			if (profileFile != null) {
+				compiler.setProfile(BlockProfile.load(cwd.resolve(profileFile).toString()));
+			}
+
+			CompileResult result = compiler.compile(CharStreams.fromPath(cwd.resolve(inputFiles.get(0))));
+
+			for (String d : result.getDiagnostics()) {
+				err.println(d);
 			}
+
+			Throwable failure = result.getFailure();
+			if (failure instanceof CompileError || failure instanceof UncheckedIOException) {
+				//errors were printed with the symbol table, or the output could not be written
+				return 1;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			} else if (failure != null) {
+				throw (RuntimeException) failure;
+			}
+
+			// Print out the code. Runme script will redirect as necessary
+			if (outputFile == null) {
+				out.print(result.getAssembly());
+			}
+
+			if (stats) {
+				if (statsFile != null) {
+					PrintStream sout = new PrintStream(cwd.resolve(statsFile).toString());
+					result.getStats().print(sout);
+					sout.close();
+				} else {
+					result.getStats().print(err);
+				}
+			}
+
+		} catch (IOException e) {
+			out.println("File not found");
+			e.printStackTrace(err);
+			return 1;
 		}
+		return 0;
 	}
-	
-}
\ No newline at end of file
+
+	/**
+	 * Link units into one program, written to <code>outputFile</code> (or <code>out</code> if null).
+	 * Link errors go to <code>err</code>.
+	 *
+	 * @return exit status
+	 */
+	private static int link(Path cwd, List<String> unitFiles, String outputFile, PrintStream out, PrintStream err) {
+		List<Path> units = new ArrayList<Path>();
+		for (String u : unitFiles) {
+			units.add(cwd.resolve(u));
+		}
+		Path output = outputFile == null ? null : cwd.resolve(outputFile);
+
+		try {
+			Linker linker = new Linker(units);
+			linker.resolve();
+			if (output != null) {
+				try (AsmWriter writer = new AsmWriter(FileChannel.open(output, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+					linker.write(writer);
+				}
+			} else {
+				AsmWriter writer = new AsmWriter(Channels.newChannel(out));
+				linker.write(writer);
+				writer.flush();
+			}
+		} catch (CompileError e) {
+			err.println(e.getMessage());
+			return 1;
+		} catch (IOException e) {
+			err.println(e);
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Compile every file into <code>outDir/&lt;path&gt;.asm</code> (<code>.unit</code> for units,
+	 * and <code>&lt;path&gt;.stats</code>),
+	 * one task per file on a work-stealing pool. Diagnostics go to stderr, prefixed by the file name.
+	 *
+	 * @return exit status: 0 if every file compiled
+	 */
+	private static int batch(Path cwd, String outDir, List<String> inputFiles, boolean instrument, boolean stats,
+			boolean unit, Path cacheDir, PrintStream err) {
+		ExecutorService pool = Executors.newWorkStealingPool();
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+
+		for (String inputFile : inputFiles) {
+			tasks.add(() -> {
+				//keep the input's path under outDir, so inputs with the same name do not collide
+				//(an input outside cwd goes by its absolute path, so .. cannot leave outDir)
+				Path in = Paths.get(inputFile).normalize();
+				if (in.isAbsolute() || in.startsWith("..")) {
+					in = cwd.resolve(in).toAbsolutePath().normalize();
+					in = in.getRoot().relativize(in);
+				}
+				String name = in.toString().replaceFirst("\\.uC$", "");
+				Path asmFile = cwd.resolve(outDir).resolve(name + (unit ? ".unit" : ".asm"));
+				Files.createDirectories(asmFile.getParent());
+
+				Compiler compiler = new Compiler();
+				compiler.setInstrument(instrument);
+				compiler.setStats(stats);
+				compiler.setOutput(asmFile);
+				compiler.setCache(cacheDir);
+				compiler.setUnit(unit);
+				CompileResult result = compiler.compile(CharStreams.fromPath(cwd.resolve(inputFile)));
+
+				for (String d : result.getDiagnostics()) {
+					err.println(inputFile + ": " + d);
+				}
+				if (!result.succeeded()) {
+					return false;
+				}
+
+				if (stats) {
+					PrintStream out = new PrintStream(cwd.resolve(outDir).resolve(name + ".stats").toString());
+					result.getStats().print(out);
+					out.close();
+				}
+				return true;
+			});
+		}
+
+		int status = 0;
+		try {
+			Files.createDirectories(cwd.resolve(outDir));
+			for (Future<Boolean> f : pool.invokeAll(tasks)) {
+				try {
+					if (!f.get()) {
+						status = 1;
+					}
+				} catch (ExecutionException e) {
+					//could not read the input or write the output
+					err.println(e.getCause());
+					status = 1;
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			err.println(e);
+			status = 1;
+		}
+		pool.shutdown();
+		return status;
+	}
+
+}
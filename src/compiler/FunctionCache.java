@@ -0,0 +1,225 @@
+package compiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+
+import assembly.CodeGenerator;
+import assembly.instructions.Instruction;
+import ast.CallNode;
+import ast.FunctionNode;
+import ast.VarNode;
+import ast.visitor.AbstractASTVisitor;
+
+/**
+ * On-disk cache of the code generated for each function (<code>--cache &lt;dir&gt;</code>),
+ * so that after an edit only the functions that changed are generated again.
+ *
+ * A function's code depends on its own tokens, on the globals and strings it
+ * uses (their types and addresses), on the signatures of the functions it calls,
+ * and on the code generator's options. The key of an entry is a SHA-256 hash of
+ * all of these, plus a hash of the compiled <code>assembly</code> and <code>ast</code>
+ * packages (the code generator, its passes, the instructions and how they print),
+ * so a rebuilt compiler does not reuse stale code. Each entry is one file, <code>&lt;key&gt;.asm</code>,
+ * holding the function's assembly.
+ *
+ * Entries are written to a temporary file and moved into place, so compilers
+ * running in parallel (batch mode, the compile server) can share a directory.
+ * The cache only ever speeds things up: an entry that cannot be read or written
+ * is simply a miss.
+ */
+public class FunctionCache {
+
+	//the code generator, its passes, the instructions and how they print, and the AST it walks
+	private static final List<String> HASHED_PACKAGES = List.of("assembly", "ast");
+
+	private static final String COMPILER_HASH = compilerHash();
+
+	private Path dir;
+	private TokenStream tokens;
+
+	private AtomicInteger hits;
+	private AtomicInteger misses;
+
+	/**
+	 * @param dir directory holding the entries; created if needed
+	 * @param tokens token stream the program's functions were parsed from
+	 */
+	public FunctionCache(Path dir, TokenStream tokens) throws IOException {
+		this.dir = dir;
+		this.tokens = tokens;
+		hits = new AtomicInteger();
+		misses = new AtomicInteger();
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * @param node the function
+	 * @param options everything besides the program that the function's code depends on
+	 * @return the key of the function's entry
+	 */
+	public String key(FunctionNode node, String options) {
+		MessageDigest md = digest();
+		update(md, COMPILER_HASH);
+		update(md, options);
+
+		for (int i = node.getFirstToken(); i <= node.getLastToken(); i++) {
+			Token t = tokens.get(i);
+			update(md, t.getType() + " " + t.getText());
+		}
+
+		References refs = new References();
+		refs.run(node);
+		for (String ref : refs.refs) {
+			update(md, ref);
+		}
+
+		return HexFormat.of().formatHex(md.digest());
+	}
+
+	/**
+	 * @return the lines of the cached code, or null if there is no entry for <code>key</code>
+	 */
+	public List<String> get(String key) {
+		try {
+			List<String> lines = Files.readAllLines(dir.resolve(key + ".asm"), StandardCharsets.UTF_8);
+			hits.incrementAndGet();
+			return lines;
+		} catch (NoSuchFileException e) {
+			//not compiled before
+		} catch (IOException e) {
+			//unreadable; treat it like a missing entry, and it is rewritten
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Store the code of a function under <code>key</code>
+	 */
+	public void put(String key, Collection<Instruction> code) {
+		List<String> lines = new ArrayList<String>();
+		for (Instruction i : code) {
+			lines.add(i.toString());
+		}
+		try {
+			Path tmp = Files.createTempFile(dir, key, ".tmp");
+			Files.write(tmp, lines, StandardCharsets.UTF_8);
+			Files.move(tmp, dir.resolve(key + ".asm"), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			//the function is just generated again next time
+		}
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Collects what a function uses from outside itself: global variables and
+	 * strings, and the functions it calls
+	 */
+	private static class References extends AbstractASTVisitor<Void> {
+		Set<String> refs = new TreeSet<String>();
+
+		@Override
+		protected void preprocess(VarNode node) {
+			Scope.SymbolTableEntry ste = node.getSymbol();
+			if (!ste.isLocal()) {
+				refs.add("global " + ste.getName() + " " + ste.getType() + " " + ste.addressToString());
+			}
+		}
+
+		@Override
+		protected void preprocess(CallNode node) {
+			refs.add("call " + node.getFuncName() + " " + node.getType() + " " + node.getArgTypeFromSte());
+		}
+	}
+
+	private static void update(MessageDigest md, String s) {
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * @return hash of the class files of every package that shapes the generated code
+	 *         (see {@link #HASHED_PACKAGES}), or, if they cannot be read, a value that
+	 *         is different on every run so that nothing cached by another build is reused
+	 */
+	private static String compilerHash() {
+		MessageDigest md = digest();
+		try {
+			Path root = Paths.get(CodeGenerator.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			List<String> names = new ArrayList<String>();
+			if (Files.isDirectory(root)) {
+				for (String pkg : HASHED_PACKAGES) {
+					try (Stream<Path> files = Files.walk(root.resolve(pkg))) {
+						files.filter(f -> f.toString().endsWith(".class"))
+								.forEach(f -> names.add(root.relativize(f).toString().replace('\\', '/')));
+					}
+				}
+				Collections.sort(names);
+				for (String name : names) {
+					update(md, name);
+					md.update(Files.readAllBytes(root.resolve(name)));
+				}
+			} else {
+				try (JarFile jar = new JarFile(root.toFile())) {
+					for (JarEntry e : Collections.list(jar.entries())) {
+						for (String pkg : HASHED_PACKAGES) {
+							if (e.getName().startsWith(pkg + "/") && e.getName().endsWith(".class")) {
+								names.add(e.getName());
+							}
+						}
+					}
+					Collections.sort(names);
+					for (String name : names) {
+						update(md, name);
+						try (InputStream in = jar.getInputStream(jar.getEntry(name))) {
+							md.update(in.readAllBytes());
+						}
+					}
+				}
+			}
+		} catch (IOException | URISyntaxException | RuntimeException e) {
+			return "unhashed " + new SecureRandom().nextLong();
+		}
+		return HexFormat.of().formatHex(md.digest());
+	}
+}
@@ -0,0 +1,45 @@
+package compiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for the code generation of one function, with the same numbers
+ * as its <code>--stats</code> line. The event duration is the codegen wall time.
+ */
+@Name("microc.Function")
+@Label("Function Codegen")
+@Category("MicroC")
+public class FunctionEvent extends Event {
+
+	@Label("Function")
+	String function;
+
+	@Label("Allocated")
+	@Description("Bytes allocated by the compiling thread during codegen")
+	@DataAmount
+	long allocated;
+
+	@Label("AST Nodes")
+	int astNodes;
+
+	@Label("Instructions")
+	int instructions;
+
+	@Label("Basic Blocks")
+	int blocks;
+
+	@Label("Temporaries")
+	@Description("Each one is saved in the prologue and restored in the epilogue")
+	int temps;
+
+	@Label("Loads")
+	int loads;
+
+	@Label("Stores")
+	int stores;
+}
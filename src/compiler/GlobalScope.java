@@ -40,6 +40,13 @@ import java.util.List;
 		return retVal;
 	}
 
+	/**
+	 * @return address the next global variable would get; everything from here on is free
+	 */
+	public int getGlobalBase() {
+		return globalBase;
+	}
+
 	@Override
 	protected SymbolTableEntry searchLocalScope(String name) {
 		return table.get(name);
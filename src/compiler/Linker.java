@@ -0,0 +1,233 @@
+package compiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import assembly.AsmWriter;
+import assembly.CodeGenerator;
+
+/**
+ * Links units compiled with <code>--unit</code> (see {@link Compiler#setUnit}) into one program.
+ *
+ * Every function must be defined by exactly one unit, and the signature a unit
+ * declares it with must match the definition. Globals and strings with the same
+ * name in several units are the same variable, so their types (or values) must
+ * agree. The linker places the strings and globals of all units, in the order
+ * they are first declared, at the addresses a single-file compile would use
+ * ({@link SymbolTable#STRING_BASE}, {@link SymbolTable#GLOBAL_BASE}), fills
+ * their addresses into the <code>LA</code> instructions of the units, and puts
+ * the start-up code in front. Linking a single unit gives exactly the assembly
+ * that compiling its source as a program does.
+ *
+ * Each unit is read twice: once to resolve all symbols and report every error,
+ * and once, only if there were none, to copy its code into the program.
+ */
+public class Linker {
+
+	private static class Unit {
+		Path path;
+		Map<String, String> imports = new LinkedHashMap<String, String>();
+		Set<String> calls = new LinkedHashSet<String>();
+	}
+
+	private List<Unit> units;
+
+	private Map<String, String> functions; //name -> signature
+	private Map<String, Path> definedIn;
+	private Map<String, String> globals; //name -> type
+	private Map<String, String> strings; //name -> literal
+	private Map<String, Path> declaredIn;
+	private Map<String, Integer> addresses;
+
+	private List<String> errors;
+
+	public Linker(List<Path> paths) {
+		units = new ArrayList<Unit>();
+		for (Path p : paths) {
+			Unit u = new Unit();
+			u.path = p;
+			units.add(u);
+		}
+		functions = new LinkedHashMap<String, String>();
+		definedIn = new LinkedHashMap<String, Path>();
+		globals = new LinkedHashMap<String, String>();
+		strings = new LinkedHashMap<String, String>();
+		declaredIn = new LinkedHashMap<String, Path>();
+		addresses = new LinkedHashMap<String, Integer>();
+		errors = new ArrayList<String>();
+	}
+
+	/**
+	 * @return how a function's signature is written in a unit header, e.g. <code>INT (INT, PTR to FLOAT)</code>
+	 */
+	static String signature(Scope.FunctionSymbolTableEntry fste) {
+		List<String> args = new ArrayList<String>();
+		for (Scope.Type t : fste.getArgTypes()) {
+			args.add(t.toString());
+		}
+		return fste.getReturnType() + " (" + String.join(", ", args) + ")";
+	}
+
+	/**
+	 * Read the headers of all units, check that every function they call is
+	 * defined, and place the globals and strings
+	 *
+	 * @throws CompileError listing every link error found
+	 */
+	public void resolve() throws IOException {
+		for (Unit u : units) {
+			read(u);
+		}
+
+		for (Unit u : units) {
+			for (Map.Entry<String, String> i : u.imports.entrySet()) {
+				String sig = functions.get(i.getKey());
+				if (sig != null && !sig.equals(i.getValue())) {
+					errors.add(u.path + ": function " + i.getKey() + " declared as " + i.getValue() + " but defined in "
+							+ definedIn.get(i.getKey()) + " as " + sig);
+				}
+			}
+			for (String f : u.calls) {
+				if (!functions.containsKey(f)) {
+					errors.add(u.path + ": undefined function " + f);
+				}
+			}
+		}
+		if (!functions.containsKey("main")) {
+			errors.add("No unit defines main");
+		}
+
+		if (!errors.isEmpty()) {
+			throw new CompileError(String.join("\n", errors));
+		}
+
+		int stringBase = SymbolTable.STRING_BASE;
+		for (String s : strings.keySet()) {
+			addresses.put(s, stringBase);
+			stringBase += 4;
+		}
+		int globalBase = SymbolTable.GLOBAL_BASE;
+		for (String g : globals.keySet()) {
+			addresses.put(g, globalBase);
+			globalBase += 4;
+		}
+	}
+
+	private void read(Unit u) throws IOException {
+		try (BufferedReader in = Files.newBufferedReader(u.path, StandardCharsets.UTF_8)) {
+			String line = in.readLine();
+			if (!".unit".equals(line)) {
+				errors.add(u.path + ": not a unit (compile it with --unit)");
+				return;
+			}
+
+			//header
+			while ((line = in.readLine()) != null && !line.equals(".section .text")) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] f = line.split(" ", 3);
+				if (f.length < 3) {
+					errors.add(u.path + ": malformed header line: " + line);
+					continue;
+				}
+				switch (f[0]) {
+					case ".export":
+						if (definedIn.containsKey(f[1])) {
+							errors.add(u.path + ": function " + f[1] + " is already defined in " + definedIn.get(f[1]));
+						} else {
+							functions.put(f[1], f[2]);
+							definedIn.put(f[1], u.path);
+						}
+						break;
+					case ".import":
+						u.imports.put(f[1], f[2]);
+						break;
+					case ".global":
+						declare(u, f[1], f[2], globals, strings, "type");
+						break;
+					case ".string":
+						declare(u, f[1], f[2], strings, globals, "value");
+						break;
+					default:
+						errors.add(u.path + ": malformed header line: " + line);
+				}
+			}
+
+			//code: only calls need checking, everything a unit's LAs name is in its header
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("JR func_")) {
+					u.calls.add(line.substring("JR func_".length()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a global or string to <code>names</code>, unless another unit already did,
+	 * in which case the two must agree
+	 */
+	private void declare(Unit u, String name, String value, Map<String, String> names, Map<String, String> others,
+			String what) {
+		if (others.containsKey(name)) {
+			errors.add(u.path + ": " + name + " is declared differently in " + declaredIn.get(name));
+		} else if (!names.containsKey(name)) {
+			names.put(name, value);
+			declaredIn.put(name, u.path);
+		} else if (!names.get(name).equals(value)) {
+			errors.add(u.path + ": " + name + " has " + what + " " + value + " but " + names.get(name) + " in "
+					+ declaredIn.get(name));
+		}
+	}
+
+	/**
+	 * Write the linked program: start-up code, the code of every unit in order, and the strings
+	 */
+	public void write(AsmWriter out) throws IOException {
+		out.writeLine(".section .text");
+		out.write(new CodeGenerator().startup());
+
+		for (Unit u : units) {
+			try (BufferedReader in = Files.newBufferedReader(u.path, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = in.readLine()) != null && !line.equals(".section .text")) {
+					//skip the header
+				}
+				while ((line = in.readLine()) != null) {
+					out.writeLine(relocate(line));
+				}
+			}
+		}
+
+		out.writeLine("");
+		out.writeLine("");
+		out.writeLine(".section .strings");
+		for (Map.Entry<String, String> s : strings.entrySet()) {
+			out.writeLine(String.format("0x%x", addresses.get(s.getKey())) + " " + s.getValue());
+		}
+	}
+
+	/**
+	 * @return the line with the name in an <code>LA</code> replaced by the address it was given
+	 */
+	private String relocate(String line) {
+		if (!line.startsWith("LA ")) {
+			return line;
+		}
+		int comma = line.lastIndexOf(", ");
+		Integer address = addresses.get(line.substring(comma + 2));
+		if (address == null) {
+			return line; //already an address
+		}
+		return line.substring(0, comma + 2) + String.format("0x%x", address);
+	}
+}
@@ -0,0 +1,26 @@
+package compiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one whole-program compiler phase (parse, codegen, emit).
+ * The event duration is the wall time of the phase.
+ */
+@Name("microc.Phase")
+@Label("Compiler Phase")
+@Category("MicroC")
+public class PhaseEvent extends Event {
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Allocated")
+	@Description("Bytes allocated by the compiling thread during the phase")
+	@DataAmount
+	long allocated;
+}
@@ -1,5 +1,6 @@
 package compiler;
 
+import java.io.PrintStream;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -153,20 +154,20 @@ public abstract class Scope{
 		return ErrorType.NONE;
 	}
 	
-	public void printTable() {
-		printLocalTable();
+	public void printTable(PrintStream out) {
+		printLocalTable(out);
 		for (Scope st : subScopes) {
-			st.printTable();
+			st.printTable(out);
 		}
 	}
 	
-	protected void printLocalTable() {
-		System.out.println("; Symbol table " + name);
+	protected void printLocalTable(PrintStream out) {
+		out.println("; Symbol table " + name);
 		
 		for (SymbolTableEntry ste : table.values())
-			System.out.println(ste);
+			out.println(ste);
 			
-		System.out.println();
+		out.println();
 	}
 	
 	static public class SymbolTableEntry {
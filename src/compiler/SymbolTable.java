@@ -1,5 +1,6 @@
 package compiler;
 
+import java.io.PrintStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Stack;
@@ -11,9 +12,14 @@ public class SymbolTable {
 	private Scope globalScope;
 	private Stack<Scope> scopeStack;
 	private LinkedList<String> errors;
+	private PrintStream log; //where the table and its errors are printed
+
+	//where strings and global variables are placed by default (and by the Linker)
+	public static final int STRING_BASE = 0x10000000;
+	public static final int GLOBAL_BASE = 0x20000000;
 
 	public SymbolTable() {
-		this(0x10000000, 0x20000000);
+		this(STRING_BASE, GLOBAL_BASE);
 	}
 
 	public SymbolTable(int stringBase, int globalBase) {
@@ -23,6 +29,11 @@ public class SymbolTable {
 		scopeStack.push(getGlobalScope());
 
 		errors = new LinkedList<String>();
+		log = System.out;
+	}
+
+	public void setLog(PrintStream log) {
+		this.log = log;
 	}
 	
 	public Scope currentScope() {
@@ -39,7 +50,7 @@ public class SymbolTable {
 		assert (type.type != Scope.InnerType.STRING);
 		Scope.ErrorType e = currentScope().addSymbol(type, name);
 		if (e != Scope.ErrorType.NONE) {
-			System.out.println("Found " + e + " adding " + type + " " + name);
+			log.println("Found " + e + " adding " + type + " " + name);
 		}
 	    processError(name, e);
 	}
@@ -91,19 +102,25 @@ public class SymbolTable {
 			case ERROR :
 				errors.add("DECLARATION ERROR " + name);
 				printErrors();
-				System.exit(1);
-				break;
+				throw new CompileError("DECLARATION ERROR " + name);
 		}
 	}
 	
 	public void printErrors() {
 		for (String error : errors) {
-			System.out.println(error);
+			log.println(error);
 		}
 	}
+
+	/**
+	 * @return declaration errors and shadowing warnings found so far
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
 	
 	public void printTable() {
-		getGlobalScope().printTable();
+		getGlobalScope().printTable(log);
 	}
 	
 	public Scope getGlobalScope() {
@@ -1,7 +1,12 @@
 package assembly;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 
 import ast.visitor.AbstractASTVisitor;
 
@@ -9,6 +14,7 @@ import ast.*;
 import assembly.instructions.*;
 import assembly.RegisterAllocator;
 import compiler.Scope;
+import compiler.SymbolTable;
 import compiler.Scope.SymbolTableEntry;
 
 public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
@@ -22,12 +28,41 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 	int elseLabel;
 	int outLabel;
 
-	static final public int numIntRegisters = 32; //TASK5 - needs to be passed as input
-	static final public int numFloatRegisters = 32;
+	//registers of each kind the register allocator may use (x0-x3 and, if there are more than 8, x8 are reserved)
+	int numIntRegisters;
+	int numFloatRegisters;
+
+	//address frames from sp instead of keeping a frame pointer, leaving x8 to the allocator (see setOmitFramePointer)
+	boolean omitFramePointer;
 
 	String currFunc;
+
+	//functions whose registers are not allocated yet, in program order
+	private static class PendingFunction {
+		FunctionNode node;
+		CodeObject body;
+		CodeObject co;
+
+		PendingFunction(FunctionNode node, CodeObject body, CodeObject co) {
+			this.node = node;
+			this.body = body;
+			this.co = co;
+		}
+	}
+	List<PendingFunction> pending;
+
+	//registers each allocated function, and everything it calls, may change (see RegisterAllocator.getClobbered)
+	Map<String, Set<String>> clobbers;
 	
 	public CodeGenerator() {
+		this(32);
+	}
+
+	public CodeGenerator(int numRegisters) {
+		numIntRegisters = numRegisters;
+		numFloatRegisters = numRegisters;
+		pending = new ArrayList<PendingFunction>();
+		clobbers = new HashMap<String, Set<String>>();
 		loopLabel = 0;
 		elseLabel = 0;
 		outLabel = 0;
@@ -35,6 +70,16 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		floatRegCount = 0;
 	}
 
+	/**
+	 * Address locals and arguments relative to sp rather than fp. uC has no
+	 * variable-sized stack allocation, so the frame size, and therefore each
+	 * offset from sp, is known at compile time. Functions then neither save
+	 * nor set up fp, and x8 becomes an allocatable register.
+	 */
+	public void setOmitFramePointer(boolean omit) {
+		omitFramePointer = omit;
+	}
+
 	public int getIntRegCount() {
 		return intRegCount;
 	}
@@ -58,10 +103,11 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		CodeObject co = new CodeObject(sym);
 		co.lval = true;
 		co.type = node.getType();
+		//the operand names the variable by its slot, so the register allocator finds it without a lookup
 		if (sym.isLocal()) {
-			co.temp = "$l" + String.valueOf(sym.getAddress());
+			co.temp = "$l" + String.valueOf(sym.getIndex());
 		} else {
-			co.temp = "$g" + sym.getName();
+			co.temp = "$g" + String.valueOf(sym.getIndex());
 		}
 
 
@@ -924,7 +970,22 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		 * 4. Now generate code for your function as before, but using the updated information for register save/restore and frame allocation
 		 */
 		//TASK5
-		RegisterAllocator regAl = new RegisterAllocator(numIntRegisters, body.code, node.getScope());
+		//registers are allocated once every function has its 3AC, callees before their
+		//callers (see postprocess(FunctionListNode)), so co is filled in later
+		pending.add(new PendingFunction(node, body, co));
+		return co;
+	}
+
+	/**
+	 * Allocate registers for a function, and generate its code (steps 1-6 above)
+	 * into the code object postprocess(FunctionNode) returned for it. The clobber
+	 * summaries of the functions it calls must already be known, except for
+	 * recursive calls.
+	 */
+	private void allocate(FunctionNode node, CodeObject body, CodeObject co) {
+		currFunc = node.getFuncName();
+		RegisterAllocator regAl = new RegisterAllocator(numIntRegisters, body.code, node.getScope(), clobbers,
+				omitFramePointer);
 		// regAl.setLiveness(regAl.bbLeaders.get(1), regAl.bbLeaders.get(2));
 		regAl.convert();
 
@@ -940,30 +1001,28 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		String funcBegLabel = generateFunctionLabel();
 		co.code.add(new Label(funcBegLabel));
 
-		// Step 2:
-		//a.
-		co.code.add(new Sw("fp", "sp", "0"));
-		//b.
-		co.code.add(new Mv("sp", "fp"));
-		//c.
-		co.code.add(new Addi("sp", "-4", "sp")); 
-
-		//Step 3:
-		co.code.add(new Addi("sp", String.valueOf(node.getScope().getNumLocals()*-4), "sp"));
-
-		//Step 4:
-		Character t;
-		for (String reg : regAl.regsUsed) {
-			t = reg.charAt(0);
-			if (t == 'x'){
-				co.code.add(new Sw(reg, "sp", "0"));
-				co.code.add(new Addi("sp", "-4", "sp"));
-			} else {
-				co.code.add(new Fsw(reg, "sp", "0"));
-				co.code.add(new Addi("sp", "-4", "sp"));
-			}
+		//the word fp would be saved in stays, so the frame looks the same either way
+		int frameSize = 4 + node.getScope().getNumLocals()*4;
+		if (omitFramePointer) {
+			//Steps 2 and 3:
+			co.code.add(new Addi("sp", String.valueOf(-frameSize), "sp"));
+			bodyCode = addressFromSp(bodyCode, frameSize);
+		} else {
+			// Step 2:
+			//a.
+			co.code.add(new Sw("fp", "sp", "0"));
+			//b.
+			co.code.add(new Mv("sp", "fp"));
+			//c.
+			co.code.add(new Addi("sp", "-4", "sp")); 
+
+			//Step 3:
+			co.code.add(new Addi("sp", String.valueOf(node.getScope().getNumLocals()*-4), "sp"));
 		}
 
+		//Step 4: the allocator saved the callee-saved registers it used in frame slots,
+		//only on the paths that use them (see RegisterAllocator.shrinkWrap)
+
 		//Step 5:
 		// co.code.addAll(body.code);
 		co.code.addAll(bodyCode);
@@ -972,33 +1031,76 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		//a.
 		String funcRetLabel = generateFunctionOutLabel();
 		co.code.add(new Label(funcRetLabel));
-		//b.
-        ListIterator<String> iter = regAl.regsUsed.listIterator(regAl.regsUsed.size());
-		while(iter.hasPrevious()){
-			String reg = iter.previous();
-			co.code.add(new Addi("sp", "4", "sp"));
-			t = reg.charAt(0);
-			if (t == 'x'){
-				co.code.add(new Lw(reg, "sp", "0"));
-			} else {
-				co.code.add(new Flw(reg, "sp", "0"));
-			}
-		}
+		//b. restored by the body before it jumps here
 
-		//c.
-		co.code.add(new Mv("fp", "sp"));
-		//d.
-		co.code.add(new Lw("fp", "fp", "0"));
+		if (omitFramePointer) {
+			//c. and d.
+			co.code.add(new Addi("sp", String.valueOf(frameSize), "sp"));
+		} else {
+			//c.
+			co.code.add(new Mv("fp", "sp"));
+			//d.
+			co.code.add(new Lw("fp", "fp", "0"));
+		}
 		//e.
 		co.code.add(new Ret());
 
-		return co;
+		clobbers.put(node.getFuncName(), regAl.getClobbered());
+	}
+
+	/**
+	 * Rewrite a function body that addresses its frame from fp to address it from sp.
+	 * sp only moves while a call's arguments and return address are pushed, which
+	 * never spans a label or branch, so at each instruction it is a known distance
+	 * below where it was after the prologue, and fp + off is sp + (off + frameSize + that distance).
+	 */
+	private InstructionList addressFromSp(InstructionList body, int frameSize) {
+		InstructionList code = new InstructionList();
+		int pushed = 0;
+		for (Instruction i : body) {
+			if ((i instanceof Label || i instanceof InstructionBranch || i instanceof J) && pushed != 0) {
+				throw new Error("sp moved across a jump in " + currFunc);
+			}
+			String base = i.getOperand(Instruction.Operand.SRC1);
+			if (i.getOC() == Instruction.OpCode.ADDI && "sp".equals(base) && "sp".equals(i.getDest())) {
+				pushed -= Integer.parseInt(i.getOperand(Instruction.Operand.SRC2));
+			} else if ("fp".equals(base)) {
+				String dest = i.getDest();
+				switch (i.getOC()) {
+					case LW:
+						i = new Lw(dest, "sp", spOffset(i.getLabel(), frameSize, pushed));
+						break;
+					case FLW:
+						i = new Flw(dest, "sp", spOffset(i.getLabel(), frameSize, pushed));
+						break;
+					case SW:
+						i = new Sw(dest, "sp", spOffset(i.getLabel(), frameSize, pushed));
+						break;
+					case FSW:
+						i = new Fsw(dest, "sp", spOffset(i.getLabel(), frameSize, pushed));
+						break;
+					case ADDI:
+						i = new Addi("sp", spOffset(i.getOperand(Instruction.Operand.SRC2), frameSize, pushed), dest);
+						break;
+					default:
+						throw new Error("Unexpected use of fp: " + i);
+				}
+			} else if ("fp".equals(i.getOperand(Instruction.Operand.SRC2)) || "fp".equals(i.getDest())) {
+				throw new Error("Unexpected use of fp: " + i);
+			}
+			code.add(i);
+		}
+		return code;
+	}
+
+	private String spOffset(String fpOffset, int frameSize, int pushed) {
+		return String.valueOf(Integer.parseInt(fpOffset) + frameSize + pushed);
 	}
 
 	/**
 	 * Generate code for the list of functions. This is the "top level" code generation function
 	 * 
-	 * Step 1: Set fp to point to sp
+	 * Step 1: Set fp to point to sp, and x3 to the global pointer
 	 * 
 	 * Step 2: Insert a JR to main
 	 * 
@@ -1010,11 +1112,26 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 	protected CodeObject postprocess(FunctionListNode node, List<CodeObject> funcs) {
 		CodeObject co = new CodeObject();
 
-		co.code.add(new Mv("sp", "fp"));
+		if (!omitFramePointer) {
+			co.code.add(new Mv("sp", "fp"));
+		}
+		//the global pointer, which every access to a global is relative to
+		co.code.add(new La("x3", String.format("0x%x", SymbolTable.GLOBAL_POINTER)));
 		co.code.add(new Jr(generateFunctionLabel("main")));
 		co.code.add(new Halt());
 		co.code.add(new Blank());
 
+		//allocate registers bottom-up in the call graph, so a caller knows what its callees clobber
+		Map<String, PendingFunction> byName = new HashMap<String, PendingFunction>();
+		for (PendingFunction f : pending) {
+			byName.put(f.node.getFuncName(), f);
+		}
+		Set<String> started = new HashSet<String>();
+		for (PendingFunction f : pending) {
+			allocateBottomUp(f, byName, started);
+		}
+		pending.clear();
+
 		//add code for each of the functions
 		for (CodeObject c : funcs) {
 			co.code.addAll(c.code);
@@ -1024,6 +1141,25 @@ public class CodeGenerator extends AbstractASTVisitor<CodeObject> {
 		return co;
 	}
 
+	/**
+	 * Allocate registers for the functions f calls (that are not being allocated
+	 * already, as in a cycle of recursive calls), then for f
+	 */
+	private void allocateBottomUp(PendingFunction f, Map<String, PendingFunction> byName, Set<String> started) {
+		if (!started.add(f.node.getFuncName())) {
+			return;
+		}
+		for (Instruction i : f.body.code) {
+			if (i instanceof Jr) {
+				PendingFunction callee = byName.get(i.getLabel().substring("func_".length()));
+				if (callee != null) {
+					allocateBottomUp(callee, byName, started);
+				}
+			}
+		}
+		allocate(f.node, f.body, f.co);
+	}
+
 	/**
 	* 
 	* FILL IN FOR STEP 4
@@ -1,10 +1,18 @@
 package assembly;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import ast.visitor.AbstractASTVisitor;
 
@@ -12,6 +20,7 @@ import ast.*;
 import assembly.instructions.*;
 import assembly.instructions.Instruction.*;
 import compiler.Scope;
+import compiler.SymbolTable;
 import compiler.Scope.SymbolTableEntry;
 
 
@@ -20,10 +29,16 @@ public class RegisterAllocator {
     int numReg;
     ArrayList<Instruction> funcBody = new ArrayList<Instruction>();
     Scope funcScope;
+    Scope globalScope;
     // output from parsing the funcBody
     InstructionList assemblyCode;
     int insnIdx;
-    ArrayList<String> regsUsed;
+    int usesFrom; //first instruction whose reads are still ahead: insnIdx, or insnIdx+1 once its sources are in registers
+    ArrayList<String> regsUsed; //callee-saved registers the function uses, each once (see use)
+    //registers each function allocated so far may change when called (see getClobbered)
+    Map<String, Set<String>> clobbers;
+    //registers this function may change: the caller-saved ones it uses, and those its callees may change
+    HashSet<String> clobbered;
 
 
     public class RegsEntry {
@@ -32,6 +47,7 @@ public class RegisterAllocator {
             int free; //higher rrpv -> accessed in distant future
             int special;
             int retain;
+            int pinned; //holds a variable for a whole loop (see setLoops)
     
             RegsEntry(){
     
@@ -40,6 +56,7 @@ public class RegisterAllocator {
                 this.free = 1;
                 this.special = 0;
                 this.retain = 0;
+                this.pinned = 0;
             
             }
     }
@@ -49,6 +66,12 @@ public class RegisterAllocator {
     RegsEntry [] integerRegs;
     RegsEntry [] floatRegs;
 
+    //calling convention: a function saves the callee-saved registers it uses in its
+    //prologue; a caller keeps nothing it still needs in caller-saved ones across a call.
+    //The lower half of the allocatable registers of each kind is caller-saved.
+    boolean [] intCalleeSaved;
+    boolean [] floatCalleeSaved;
+
     public void printRegsEntry(){
         System.out.println("Integer entries: ");
         for (RegsEntry r : integerRegs){
@@ -62,15 +85,59 @@ public class RegisterAllocator {
     //2D array to keep track of liveness of funcBody
     ArrayList<ArrayList<String>> liveness; //can change the container for more options
 
+    //what is live at the start and end of each basic block, by the index of its first statement
+    HashMap<Integer, HashSet<String>> liveIn;
+    HashMap<Integer, HashSet<String>> liveOut;
+
+    //the globals the function reads or writes; a call may read any of them
+    HashSet<String> globals;
+
     //List of indices in funcBody marking Basic Block start
     ArrayList<Integer> bbLeaders;
 
+    //stack slots of spilled temporaries, indexed by temporary number ($t3 -> intSpills[3])
+    ArrayList<SymbolTableEntry> intSpills;
+    ArrayList<SymbolTableEntry> floatSpills;
+
+    //reads and writes of each operand in the current basic block, in order
+    //(the index of the instruction, negated for a write), for next-use distances
+    HashMap<String, ArrayDeque<Integer>> accesses;
+
+    //temporaries that are cheaper to compute again than to spill (a constant, or the
+    //address of a global, string or local), with the instruction that defines them
+    HashMap<String, Instruction> rematDefs;
+
+    //an innermost loop, from its label (head) to the jump back to it (back), whose
+    //variables stay in registers (var -> register) for as long as it runs
+    public class Loop {
+            int head;
+            int back;
+            int exit;
+            LinkedHashMap<String, String> regs = new LinkedHashMap<String, String>();
+            HashSet<String> written = new HashSet<String>();
+    }
+
+    //spill cost of each operand: its defs and uses, each weighted by 10^(loop depth)
+    HashMap<String, Long> spillCosts;
+
+    //loops by the index of their label, and by the index of their exit label
+    HashMap<Integer, Loop> loopHeads;
+    HashMap<Integer, Loop> loopExits;
+
+    //spill slots that no temporary holds right now. A temporary gives its slot back
+    //when it dies, so temporaries whose live ranges do not overlap share a slot
+    ArrayList<SymbolTableEntry> freeSpillSlots;
+    int numSpillSlots;
+
     //Constructor
-    public RegisterAllocator(int numReg, InstructionList body, Scope scope) {
+    // omitFramePointer: the code generator addresses the frame from sp, so x8 (fp) is an ordinary register
+    public RegisterAllocator(int numReg, InstructionList body, Scope scope, Map<String, Set<String>> clobbers,
+            boolean omitFramePointer) {
         System.out.println("numReg: "+numReg);
         this.numReg = numReg;
         this.funcBody.addAll(body.nodes);
         this.funcScope = scope;
+        this.globalScope = scope.getParent();
         this.bbLeaders = new ArrayList<>();
         this.integerRegs = new RegsEntry[numReg];
         this.floatRegs = new RegsEntry[numReg];
@@ -84,71 +151,697 @@ public class RegisterAllocator {
         this.integerRegs[0].special = 1; //zero
         this.integerRegs[1].special = 1; //ra
         this.integerRegs[2].special = 1; //sp
-        this.integerRegs[3].special = 1; //address
-        if(numReg > 8)
+        this.integerRegs[3].special = 1; //gp, set once at program entry (see gpOffset)
+        if(numReg > 8 && !omitFramePointer)
             this.integerRegs[8].special = 1; //fp
 
+        this.intCalleeSaved = new boolean[numReg];
+        this.floatCalleeSaved = new boolean[numReg];
+        int allocatable = 0;
+        for(int i=0; i < numReg; i++ ){
+            if (integerRegs[i].special == 0) {
+                allocatable++;
+            }
+        }
+        int seen = 0;
+        for(int i=0; i < numReg; i++ ){
+            if (integerRegs[i].special == 0) {
+                intCalleeSaved[i] = (seen++ >= (allocatable + 1) / 2);
+            }
+            floatCalleeSaved[i] = (i >= (numReg + 1) / 2);
+        }
 
         this.liveness = new ArrayList<ArrayList<String>>();
         this.assemblyCode = new InstructionList();
         this.regsUsed = new ArrayList<String>();
+        this.clobbers = clobbers;
+        this.clobbered = new HashSet<String>();
+        this.intSpills = new ArrayList<SymbolTableEntry>();
+        this.floatSpills = new ArrayList<SymbolTableEntry>();
+        this.freeSpillSlots = new ArrayList<SymbolTableEntry>();
+        this.numSpillSlots = 0;
     }
 
-    public void setBB() {
-        //algorithm to set bbLeaders
-        Iterator<Instruction> iter = funcBody.iterator();
-        Instruction i; int idx = 0; int prev = 0; int next;
-        bbLeaders.add(0); //first statement is always a leader; covered in labels
-        while(iter.hasNext()) {
-            idx++;
-            i = iter.next();
-            // System.out.println(i);
+    // Symbol table entry of a variable operand. The code generator names locals and
+    // globals by their slot ($l<index>, $g<index>), so this is an array access:
+    // no name is hashed and no scope is searched
+    public SymbolTableEntry slot(String oper) {
+        int index = Integer.parseInt(oper.substring(2));
+        if (oper.charAt(1) == 'l') {
+            return funcScope.getSlot(index);
+        } else {
+            return globalScope.getSlot(index);
+        }
+    }
 
-            //Label insns
-            if (i.getOC() == null) {
-                if (i.getLabel() != null){
-                    next = idx; //next statement marks a new BB
-                    // System.out.println("---");
-                    // System.out.println(idx);
-                    // System.out.println("---");
-                }
-                //Exclusive 3AC insns are not recognized as Instruction
+    // Offset of a global from the global pointer, which x3 holds throughout the program,
+    // so a global is loaded or stored with one instruction and no scratch register.
+    // A global more than a 12-bit offset away is reached by pointing x3 at it for the
+    // one access (offset 0), and restoreGp() points x3 back after the access.
+    public String gpOffset(SymbolTableEntry ste) {
+        int offset = ste.getAddress() - SymbolTable.GLOBAL_POINTER;
+        if (offset < -2048 || offset > 2047) {
+            assemblyCode.add(new La("x3", ste.addressToString()));
+            return "0";
+        }
+        return String.valueOf(offset);
+    }
+
+    // After accessing a global through gpOffset(): x3 holds the global pointer again
+    public void restoreGp(SymbolTableEntry ste) {
+        int offset = ste.getAddress() - SymbolTable.GLOBAL_POINTER;
+        if (offset < -2048 || offset > 2047) {
+            assemblyCode.add(new La("x3", String.format("0x%x", SymbolTable.GLOBAL_POINTER)));
+        }
+    }
+
+    // Stack slot of a spilled temporary, or null if it is not spilled.
+    // With create, the temporary gets a free slot, and only if there is
+    // none is a new one added to the local scope (growing the frame).
+    public SymbolTableEntry spillSlot(String oper, boolean create) {
+        ArrayList<SymbolTableEntry> spills = (oper.charAt(1) == 'f') ? floatSpills : intSpills;
+        int num = Integer.parseInt(oper.substring(2));
+
+        while (spills.size() <= num) {
+            spills.add(null);
+        }
+        if (spills.get(num) == null && create) {
+            SymbolTableEntry slot;
+            if (!freeSpillSlots.isEmpty()) {
+                //most recently freed first: it is the one nearest the top of the frame in use
+                slot = freeSpillSlots.remove(freeSpillSlots.size() - 1);
+            } else {
+                //'$' keeps the name apart from the program's variables; ints and floats are both one word
+                funcScope.addSymbol(Scope.Type.INT, "$spill" + numSpillSlots++);
+                slot = funcScope.getSlot(funcScope.getNumSlots() - 1);
+            }
+            spills.set(num, slot);
+        }
+        return spills.get(num);
+    }
+
+    // true if the instruction stores its DEST operand into the frame (a return value)
+    // or onto the stack (an argument), so DEST is read, not written
+    public boolean isFrameStore(Instruction insn) {
+        if (insn.getOC() == null) {
+            return false;
+        }
+        String op = insn.getOC().toString();
+        String base = insn.getOperand(Operand.SRC1);
+        return (op.equals("SW") || op.equals("FSW")) && (base.equals("sp") || base.equals("fp"));
+    }
+
+    // Record where every operand of the basic block [start, end) is read and written
+    public void setAccesses(int start, int end) {
+        accesses = new HashMap<String, ArrayDeque<Integer>>();
+        for (int j = start; j < end; j++) {
+            Instruction insn = funcBody.get(j);
+            if (!insn.is3AC()) {
                 continue;
             }
+            addAccess(insn.getOperand(Operand.SRC1), j);
+            addAccess(insn.getOperand(Operand.SRC2), j);
+            addAccess(insn.getOperand(Operand.DEST), isFrameStore(insn) ? j : -j - 1);
+        }
+    }
 
-            //Branch/jump insns
-            switch(i.getOC().toString()) {
-                case("BEQ"):
-                case("BGE"):
-                case("BGT"):
-                case("BLE"):
-                case("BLT"):
-                case("BNE"):
-                case("J"):
-                case("FEQ"):
-                case("FLT"):
-                case("FLE"):
-                    next = idx; //next statement marks a new BB
-                    // System.out.println("---");
-                    // System.out.println(idx);
-                    // System.out.println("---");
+    private void addAccess(String oper, int access) {
+        if (Instruction.is3AC(oper)) {
+            accesses.computeIfAbsent(oper, k -> new ArrayDeque<Integer>()).add(access);
+        }
+    }
+
+    // Index of the next instruction, from usesFrom on, that reads the value oper holds
+    // now, or Integer.MAX_VALUE if none in this block does (it is overwritten first, or
+    // not used again). While the sources of the current instruction are being put in
+    // registers, those not there yet are next used now (insnIdx).
+    public int nextUse(String oper) {
+        ArrayDeque<Integer> acc = accesses.get(oper);
+        if (acc == null) {
+            return Integer.MAX_VALUE;
+        }
+        //usesFrom only grows, so accesses before it can go for good
+        while (!acc.isEmpty() && (acc.peekFirst() >= 0 ? acc.peekFirst() : -acc.peekFirst() - 1) < usesFrom) {
+            acc.pollFirst();
+        }
+        if (acc.isEmpty() || acc.peekFirst() < 0) {
+            return Integer.MAX_VALUE;
+        }
+        return acc.peekFirst();
+    }
+
+    // Find the rematerializable temporaries: those defined only once, by an LI, FIMM.S,
+    // LA, or ADDI off fp. Such a value is never stored to the stack; when its register
+    // is taken, it is just dropped, and its definition is emitted again where it is needed.
+    public void setRemat() {
+        rematDefs = new HashMap<String, Instruction>();
+        HashMap<String, Integer> defs = new HashMap<String, Integer>();
+        for (Instruction insn : funcBody) {
+            String dest = insn.getOperand(Operand.DEST);
+            if (insn.getOC() == null || !Instruction.is3AC(dest) || Instruction.isLocalGlobal(dest) || isFrameStore(insn)) {
+                continue;
+            }
+            defs.merge(dest, 1, Integer::sum);
+            switch(insn.getOC()) {
+                case LI:
+                case FIMMS:
+                case LA:
+                    rematDefs.put(dest, insn);
                     break;
-                // case("JR"): //Confirm
-                case("RET"):
-                    next = idx; //next statement marks a new BB
-                    // System.out.println("---");
-                    // System.out.println(idx);
-                    // System.out.println("---");
+                case ADDI:
+                    if (insn.getOperand(Operand.SRC1).equals("fp")) {
+                        rematDefs.put(dest, insn);
+                    }
                     break;
                 default:
+                    break;
+            }
+        }
+        rematDefs.keySet().removeIf(t -> defs.get(t) > 1);
+    }
+
+    // The instruction that computes the rematerializable temporary oper into reg
+    public Instruction rematerialize(String oper, String reg) {
+        Instruction def = rematDefs.get(oper);
+        switch(def.getOC()) {
+            case LI:
+                return new Li(reg, def.getLabel());
+            case FIMMS:
+                return new FImm(reg, def.getLabel());
+            case LA:
+                return new La(reg, def.getLabel());
+            default:
+                return new Addi("fp", def.getOperand(Operand.SRC2), reg);
+        }
+    }
+
+    // Loop nesting depth of every instruction. The code generator only makes structured
+    // loops, so the natural loop of a jump back to a label is the code from the label to
+    // the jump (several jumps back to one label make one loop).
+    public int[] loopDepths() {
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        for (int idx = 0; idx < funcBody.size(); idx++) {
+            Instruction i = funcBody.get(idx);
+            if (i.getOC() == null && i.getLabel() != null) {
+                labels.put(i.getLabel(), idx);
+            }
+        }
+        TreeMap<Integer, Integer> loops = new TreeMap<Integer, Integer>(); //head -> last jump back
+        for (int idx = 0; idx < funcBody.size(); idx++) {
+            Instruction i = funcBody.get(idx);
+            Integer head = (endsBlock(i) && i.getLabel() != null) ? labels.get(i.getLabel()) : null;
+            if (head != null && head <= idx) {
+                loops.merge(head, idx, Math::max);
+            }
+        }
+        int[] depth = new int[funcBody.size()];
+        for (Map.Entry<Integer, Integer> l : loops.entrySet()) {
+            for (int idx = l.getKey(); idx <= l.getValue(); idx++) {
+                depth[idx]++;
+            }
+        }
+        return depth;
+    }
+
+    // Spill cost of every operand: the sum over its defs and uses of 10^depth, so that
+    // values used in inner loops are the last to be spilled
+    public void setSpillCosts() {
+        spillCosts = new HashMap<String, Long>();
+        int[] depth = loopDepths();
+        for (int idx = 0; idx < funcBody.size(); idx++) {
+            Instruction i = funcBody.get(idx);
+            if (!i.is3AC()) {
+                continue;
+            }
+            long weight = (long) Math.pow(10, Math.min(depth[idx], 18));
+            for (Operand o : Operand.values()) {
+                String oper = i.getOperand(o);
+                if (Instruction.is3AC(oper)) {
+                    spillCosts.merge(oper, weight, Long::sum);
+                }
+            }
+        }
+    }
+
+    // Split the live ranges of variables at the edges of innermost loops: the variables a
+    // loop uses are loaded into registers of their own on the way in, stay there however
+    // many times the loop runs, and the ones it writes are stored back on the way out.
+    // Entry and exit are each crossed once per loop, so these are the cold points to put
+    // the loads and stores. A loop qualifies if it is only entered by falling into its
+    // label, and left through its exit label or a return. Globals are kept only by loops
+    // without calls or returns, since a callee or the caller may use them from memory.
+    // A few registers are left for temporaries and everything else.
+    public void setLoops() {
+        loopHeads = new HashMap<Integer, Loop>();
+        loopExits = new HashMap<Integer, Loop>();
+
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        ArrayList<Integer> jumps = new ArrayList<Integer>(); //branches and jumps within the function
+        for (int idx = 0; idx < funcBody.size(); idx++) {
+            Instruction i = funcBody.get(idx);
+            if (i.getOC() == null && i.getLabel() != null) {
+                labels.put(i.getLabel(), idx);
+            } else if (endsBlock(i) && i.getLabel() != null) {
+                jumps.add(idx);
+            }
+        }
+
+        for (int back : jumps) {
+            Instruction j = funcBody.get(back);
+            Integer head = labels.get(j.getLabel());
+            int exit = back + 1;
+            if (j.getOC() != OpCode.J || head == null || head >= back || head == 0 || loopHeads.containsKey(head)
+                    || exit >= funcBody.size() || funcBody.get(exit).getOC() != null || funcBody.get(exit).getLabel() == null
+                    || funcBody.get(head - 1).getOC() == OpCode.J || funcBody.get(head - 1).getOC() == OpCode.RET) {
+                continue;
+            }
+
+            boolean ok = true;
+            boolean leaves = false;
+            for (int k : jumps) {
+                Integer target = labels.get(funcBody.get(k).getLabel());
+                boolean from = (head <= k && k <= back);
+                boolean to = (target != null && head <= target && target <= exit);
+                if (from && !to) {
+                    if (!funcBody.get(k).getLabel().startsWith("func_ret_")) {
+                        ok = false;
+                    }
+                    leaves = true;
+                } else if ((from && k != back && target <= k) || (!from && to)) {
+                    ok = false; //another loop inside, or a way in besides falling into the label
+                }
+            }
+            if (!ok) {
+                continue;
+            }
+
+            Loop loop = new Loop();
+            loop.head = head;
+            loop.back = back;
+            loop.exit = exit;
+            LinkedHashMap<String, Integer> uses = new LinkedHashMap<String, Integer>();
+            HashSet<String> changed = new HashSet<String>(); //registers calls in the loop may change
+            for (int k = head; k <= back; k++) {
+                Instruction i = funcBody.get(k);
+                if (i.getOC() == OpCode.JR) {
+                    leaves = true;
+                    Set<String> c = clobbers.get(i.getLabel().substring("func_".length()));
+                    for (int n = 0; n < numReg; n++) {
+                        if (c == null || c.contains("x" + n)) {
+                            changed.add("x" + n);
+                        }
+                        if (c == null || c.contains("f" + n)) {
+                            changed.add("f" + n);
+                        }
+                    }
+                }
+                if (!i.is3AC()) {
                     continue;
+                }
+                for (Operand o : Operand.values()) {
+                    String oper = i.getOperand(o);
+                    if (Instruction.is3AC(oper) && Instruction.isLocalGlobal(oper)) {
+                        uses.merge(oper, 1, Integer::sum);
+                        if (o == Operand.DEST && !isFrameStore(i)) {
+                            loop.written.add(oper);
+                        }
+                    }
+                }
+            }
+
+            //registers for the most used variables, from the top down, so callee-saved
+            //ones first; none that a call in the loop may change
+            ArrayList<String> intRegsLeft = new ArrayList<String>();
+            ArrayList<String> floatRegsLeft = new ArrayList<String>();
+            for (int n = numReg - 1; n >= 0; n--) {
+                if (integerRegs[n].special == 0 && !changed.contains("x" + n)) {
+                    intRegsLeft.add("x" + n);
+                }
+                if (!changed.contains("f" + n)) {
+                    floatRegsLeft.add("f" + n);
+                }
+            }
+            int leftInt = -3;
+            for (int n = 0; n < numReg; n++) {
+                if (integerRegs[n].special == 0) {
+                    leftInt++;
+                }
+            }
+            leftInt = Math.min(leftInt, intRegsLeft.size());
+            int leftFloat = Math.min(numReg - 3, floatRegsLeft.size());
+            int nextInt = 0;
+            int nextFloat = 0;
+            ArrayList<String> vars = new ArrayList<String>(uses.keySet());
+            vars.sort((a, b) -> uses.get(b) - uses.get(a));
+            for (String var : vars) {
+                Scope.Type type = slot(var).getType();
+                if (var.charAt(1) == 'g' && leaves) {
+                    continue;
+                }
+                if (type == Scope.Type.INT && nextInt < leftInt) {
+                    loop.regs.put(var, intRegsLeft.get(nextInt++));
+                } else if (type == Scope.Type.FLOAT && nextFloat < leftFloat) {
+                    loop.regs.put(var, floatRegsLeft.get(nextFloat++));
+                }
+            }
+
+            loopHeads.put(head, loop);
+            loopExits.put(exit, loop);
+        }
+    }
+
+    // Entering a loop: load its variables into their registers
+    public void enterLoop(Loop loop) {
+        for (Map.Entry<String, String> e : loop.regs.entrySet()) {
+            String var = e.getKey();
+            String reg = e.getValue();
+            int regIndx = Integer.parseInt(reg.substring(1));
+            SymbolTableEntry ste = slot(var);
+            RegsEntry r;
+            if (reg.charAt(0) == 'f') {
+                r = floatRegs[regIndx];
+                if (var.charAt(1) == 'l') {
+                    assemblyCode.add(new Flw(reg, "fp", ste.addressToString()));
+                } else {
+                    assemblyCode.add(new Flw(reg, "x3", gpOffset(ste)));
+                    restoreGp(ste);
+                }
+            } else {
+                r = integerRegs[regIndx];
+                if (var.charAt(1) == 'l') {
+                    assemblyCode.add(new Lw(reg, "fp", ste.addressToString()));
+                } else {
+                    assemblyCode.add(new Lw(reg, "x3", gpOffset(ste)));
+                    restoreGp(ste);
+                }
+            }
+            r.dest = var;
+            r.free = 0;
+            r.dirty = 0;
+            r.pinned = 1;
+            use(reg);
+        }
+    }
+
+    // Leaving a loop: store the variables it wrote that are still needed, and give their
+    // registers back
+    public void exitLoop(Loop loop) {
+        for (Map.Entry<String, String> e : loop.regs.entrySet()) {
+            int regIndx = Integer.parseInt(e.getValue().substring(1));
+            if (loop.written.contains(e.getKey()) && liveIn.get(loop.exit).contains(e.getKey())) {
+                store(regIndx, e.getValue().charAt(0));
+            }
+            if (e.getValue().charAt(0) == 'f') {
+                floatRegs[regIndx] = new RegsEntry();
+            } else {
+                integerRegs[regIndx] = new RegsEntry();
+            }
+        }
+    }
+
+    // Before a call: the callee may read or write any global, so globals go back to
+    // memory, and are loaded again when next used. Values in caller-saved registers
+    // that the callee may change (all of them, if its summary is not known yet, as in
+    // a recursive call) and that are still needed after the call are saved to their
+    // homes (a temporary to its spill slot) and loaded again too. Everything else
+    // stays in its register.
+    public void splitAtCall(String callee) {
+        Set<String> changed = clobbers.get(callee);
+        if (changed == null) {
+            changed = new HashSet<String>();
+            for(int n=0; n < numReg; n++ ){
+                if (integerRegs[n].special == 0 && !intCalleeSaved[n]) {
+                    changed.add("x" + n);
+                }
+                if (!floatCalleeSaved[n]) {
+                    changed.add("f" + n);
+                }
+            }
+        }
+        clobbered.addAll(changed);
+
+        for(int n=0; n < numReg; n++ ){
+            if (integerRegs[n].free == 0 && integerRegs[n].pinned == 0 && integerRegs[n].special == 0) {
+                if (integerRegs[n].dest.charAt(1) == 'g') {
+                    if (integerRegs[n].dirty == 1) {
+                        store(n, 'x');
+                    }
+                    integerRegs[n] = new RegsEntry();
+                } else if (changed.contains("x" + n)) {
+                    free("x" + n); //saves it if it is dirty and live
+                }
+            }
+            if (floatRegs[n].free == 0 && floatRegs[n].pinned == 0) {
+                if (floatRegs[n].dest.charAt(1) == 'g') {
+                    if (floatRegs[n].dirty == 1) {
+                        store(n, 'f');
+                    }
+                    floatRegs[n] = new RegsEntry();
+                } else if (changed.contains("f" + n)) {
+                    free("f" + n);
+                }
             }
+        }
+    }
+
+    // The registers a call to this function may change (once convert is done)
+    public Set<String> getClobbered() {
+        return clobbered;
+    }
+
+    // The function called next in this block if the value of oper, written or read now,
+    // is still needed after that call; otherwise null
+    public String crossesCall(String oper) {
+        for (int k = insnIdx + 1; k < funcBody.size() && !endsBlock(funcBody.get(k - 1)); k++) {
+            if (funcBody.get(k).getOC() == OpCode.JR) {
+                return liveness.get(k).contains(oper) ? funcBody.get(k).getLabel().substring("func_".length()) : null;
+            }
+            if (funcBody.get(k).getOC() == null && funcBody.get(k).getLabel() != null) {
+                break; //next block
+            }
+        }
+        return null;
+    }
+
+    // Note that the function uses a register: a callee-saved one is saved in the
+    // prologue, once; a caller-saved one is changed for the caller
+    public void use(String reg) {
+        boolean callee = (reg.charAt(0) == 'f') ? floatCalleeSaved[Integer.parseInt(reg.substring(1))]
+                : intCalleeSaved[Integer.parseInt(reg.substring(1))];
+        if (!callee) {
+            clobbered.add(reg);
+        } else if (!regsUsed.contains(reg)) {
+            regsUsed.add(reg);
+        }
+    }
 
-            if(next - prev == 1)
+    // true if the instruction ends a basic block (see setBB)
+    public boolean endsBlock(Instruction insn) {
+        if (insn == null || insn.getOC() == null) {
+            return false;
+        }
+        switch(insn.getOC().toString()) {
+            case("BEQ"):
+            case("BGE"):
+            case("BGT"):
+            case("BLE"):
+            case("BLT"):
+            case("BNE"):
+            case("J"):
+            case("FEQ"):
+            case("FLT"):
+            case("FLE"):
+            case("RET"):
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // End of a basic block: save all dirty/live variables, before the branch that ends the
+    // block so they are saved on every path, and forget what the registers hold, since the
+    // next block can be entered from elsewhere. Variables held for a loop stay.
+    public void endBlock() {
+        for(int n=0; n < numReg; n++ ){
+            if (floatRegs[n].free == 0 && floatRegs[n].pinned == 0){
+                if(floatRegs[n].dest.charAt(1) == 'l' || floatRegs[n].dest.charAt(1) == 'g'){
+                    save(n,'f');
+                }
+            }
+            if (integerRegs[n].free == 0 && integerRegs[n].pinned == 0){
+                if(integerRegs[n].dest.charAt(1) == 'l' || integerRegs[n].dest.charAt(1) == 'g'){
+                    save(n,'x'); //automatically excludes the speacial registers
+                }
+            }
+        }
+        for(int n=0; n < numReg; n++ ){
+            if (integerRegs[n].special == 0 && integerRegs[n].pinned == 0) {
+                integerRegs[n] = new RegsEntry();
+            }
+            if (floatRegs[n].pinned == 0) {
+                floatRegs[n] = new RegsEntry();
+            }
+        }
+    }
+
+    // A temporary died: its spill slot (if it has one) can be given to another
+    public void releaseSpillSlot(String oper) {
+        if (oper.charAt(1) != 't' && oper.charAt(1) != 'f') {
+            return; //locals and globals live in their own slots
+        }
+        ArrayList<SymbolTableEntry> spills = (oper.charAt(1) == 'f') ? floatSpills : intSpills;
+        int num = Integer.parseInt(oper.substring(2));
+        if (num < spills.size() && spills.get(num) != null) {
+            freeSpillSlots.add(spills.get(num));
+            spills.set(num, null);
+        }
+    }
+
+    // Temporaries do not live past the end of their basic block, so neither do their spill slots
+    public void releaseAllSpillSlots() {
+        for (ArrayList<SymbolTableEntry> spills : List.of(intSpills, floatSpills)) {
+            for (int n = 0; n < spills.size(); n++) {
+                if (spills.get(n) != null) {
+                    freeSpillSlots.add(spills.get(n));
+                    spills.set(n, null);
+                }
+            }
+        }
+    }
+
+    public void setBB() {
+        //algorithm to set bbLeaders: the first statement, every label (it can be
+        //jumped to) and every statement after a branch/jump, then the end of the body
+        TreeSet<Integer> leaders = new TreeSet<Integer>();
+        leaders.add(0);
+        for (int idx = 0; idx < funcBody.size(); idx++) {
+            Instruction i = funcBody.get(idx);
+            if (i.getOC() == null) {
+                if (i.getLabel() != null) {
+                    leaders.add(idx);
+                }
+                //Exclusive 3AC insns are not recognized as Instruction
                 continue;
-            else
-                bbLeaders.add(next); //next statement marks a new BB
-            prev = next;
+            }
+            if (endsBlock(i)) {
+                leaders.add(idx + 1);
+            }
+        }
+        leaders.add(funcBody.size());
+        bbLeaders.addAll(leaders);
+    }
+
+    // What is live at the start and end of each basic block (by its first statement), from liveness
+    // over the whole function's flow graph. A variable that no path reads again before
+    // writing it is not stored at the end of a block. Globals are live where the
+    // function returns, since the caller may read them, and before every call, since
+    // the callee may.
+    public void setLiveOut() {
+        liveIn = new HashMap<Integer, HashSet<String>>();
+        liveOut = new HashMap<Integer, HashSet<String>>();
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        globals = new HashSet<String>();
+        for (int idx = 0; idx < funcBody.size(); idx++) {
+            Instruction i = funcBody.get(idx);
+            if (i.getOC() == null && i.getLabel() != null) {
+                labels.put(i.getLabel(), idx);
+            }
+            for (Operand o : Operand.values()) {
+                String oper = i.getOperand(o);
+                if (Instruction.is3AC(oper) && oper.charAt(1) == 'g') {
+                    globals.add(oper);
+                }
+            }
+        }
+
+        int numBlocks = bbLeaders.size() - 1;
+        ArrayList<HashSet<String>> use = new ArrayList<HashSet<String>>();
+        ArrayList<HashSet<String>> def = new ArrayList<HashSet<String>>();
+        ArrayList<ArrayList<Integer>> succs = new ArrayList<ArrayList<Integer>>();
+        ArrayList<HashSet<String>> in = new ArrayList<HashSet<String>>();
+        ArrayList<HashSet<String>> out = new ArrayList<HashSet<String>>();
+        boolean[] exits = new boolean[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            int start = bbLeaders.get(b);
+            int end = bbLeaders.get(b+1);
+            HashSet<String> u = new HashSet<String>();
+            HashSet<String> d = new HashSet<String>();
+            for (int idx = start; idx < end; idx++) {
+                Instruction i = funcBody.get(idx);
+                for (String oper : new String[] {i.getOperand(Operand.SRC1), i.getOperand(Operand.SRC2)}) {
+                    if (Instruction.is3AC(oper) && !d.contains(oper)) {
+                        u.add(oper);
+                    }
+                }
+                if (i.getOC() == OpCode.JR) { //the callee may read any global
+                    for (String g : globals) {
+                        if (!d.contains(g)) {
+                            u.add(g);
+                        }
+                    }
+                }
+                String dest = i.getOperand(Operand.DEST);
+                if (Instruction.is3AC(dest)) {
+                    if (isFrameStore(i)) {
+                        if (!d.contains(dest)) {
+                            u.add(dest);
+                        }
+                    } else {
+                        d.add(dest);
+                    }
+                }
+            }
+            use.add(u);
+            def.add(d);
+
+            //successors: the target of a branch or jump, and the next block unless it is a jump or return
+            ArrayList<Integer> s = new ArrayList<Integer>();
+            Instruction last = funcBody.get(end-1);
+            boolean falls = true;
+            if (endsBlock(last) && last.getOC() != OpCode.FEQ && last.getOC() != OpCode.FLT && last.getOC() != OpCode.FLE) {
+                falls = (last.getOC() != OpCode.J && last.getOC() != OpCode.RET);
+                Integer target = (last.getLabel() == null) ? null : labels.get(last.getLabel());
+                if (target != null) {
+                    s.add(bbLeaders.indexOf(target));
+                } else if (last.getOC() != OpCode.RET) {
+                    exits[b] = true; //leaves the function some other way
+                }
+            }
+            if (falls && end < funcBody.size()) {
+                s.add(b+1);
+            }
+            if (s.isEmpty()) {
+                exits[b] = true;
+            }
+            succs.add(s);
+            in.add(new HashSet<String>());
+            out.add(new HashSet<String>());
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = numBlocks - 1; b >= 0; b--) {
+                HashSet<String> o = new HashSet<String>();
+                if (exits[b]) {
+                    o.addAll(globals);
+                }
+                for (int s : succs.get(b)) {
+                    o.addAll(in.get(s));
+                }
+                HashSet<String> n = new HashSet<String>(o);
+                n.removeAll(def.get(b));
+                n.addAll(use.get(b));
+                if (!n.equals(in.get(b)) || !o.equals(out.get(b))) {
+                    in.set(b, n);
+                    out.set(b, o);
+                    changed = true;
+                }
+            }
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            liveIn.put(bbLeaders.get(b), in.get(b));
+            liveOut.put(bbLeaders.get(b), out.get(b));
         }
     }
 
@@ -160,44 +853,25 @@ public class RegisterAllocator {
 
         ListIterator<Instruction> iter = funcBody.listIterator(nextIdx);
 
-        //add the global and local variables to in to mark them live
+        //what is live at the end of the block (see setLiveOut)
+        in.addAll(liveOut.get(startIdx));
         int idx = 0;
         Instruction i;
-        List<String> opers = new ArrayList<String>();
-
-        while(idx < size) { //assuming nextIdx is given s.t. iter.hasPrevious() is true
-            i = iter.previous(); //Confirm that it does not skip the last insn
-            // System.out.println(i);
-            opers.add(i.getOperand(Operand.DEST)); //DEST
-            opers.add(i.getOperand(Operand.SRC2)); //DEST
-            opers.add(i.getOperand(Operand.SRC1)); //DEST
-
-            for (String oper : opers) {
-                if(i.is3AC(oper)) {
-                    if(i.isLocalGlobal(oper)) {
-                        if (!in.contains(oper)) {
-                            in.add(oper);
-                            // System.out.println(oper);
-                        }
-                    }
-                }
-            }
-            idx++;
-        }
-        // System.out.println("---- Scope ----");
-        // // funcScope.printGlobalTable();
-        // funcScope.getGlobalVar();
-        // System.out.println("---- Scope End----");
 
         idx = 0;
         iter = funcBody.listIterator(nextIdx);
         while(idx < size) { //assuming nextIdx is given s.t. iter.hasPrevious() is true
-            in = new ArrayList<>(in); // in.addAll(out.get(out.size()-1));
+            //what is live after i is what is live before the statement that follows it
+            out.add(0,in);
+            in = new ArrayList<>(in);
             i = iter.previous();
 
             //get def or operands and remove from out
             String def = i.getOperand(Operand.DEST); //DEST
-            if (in.contains(def)) {
+            if (isFrameStore(i)) { //stores DEST: a use
+                if (i.is3AC(def) && !in.contains(def))
+                    in.add(def);
+            } else if (in.contains(def)) {
                 in.remove(new String(def));
             }
             String use = i.getOperand(Operand.SRC1); //SRC1
@@ -210,8 +884,13 @@ public class RegisterAllocator {
                 if (!in.contains(use))
                     in.add(use);
             }
+            if (i.getOC() == OpCode.JR) { //the callee may read any global
+                for (String g : globals) {
+                    if (!in.contains(g))
+                        in.add(g);
+                }
+            }
             // System.out.println(in);
-            out.add(0,in);
             // System.out.println();
             // System.out.println(out);
             // System.out.println();
@@ -266,6 +945,17 @@ public class RegisterAllocator {
     // save a register if dirty and live
     public void save(int regNum, Character type){
 
+        RegsEntry r = (type == 'x') ? integerRegs[regNum] : floatRegs[regNum];
+        if((r.dirty == 1) && liveness.get(insnIdx).contains(r.dest)){
+            store(regNum, type);
+            r.dirty = 0;
+        }
+
+    }
+
+    // store a register to the home of the operand it holds
+    public void store(int regNum, Character type){
+
         Instruction insn = null;
         String dest;
         if (type == 'x'){
@@ -275,86 +965,58 @@ public class RegisterAllocator {
         }
         Character id = dest.charAt(1);
         SymbolTableEntry ste = null;
-
+        String addr;
 
         if(type == 'x'){
 
-            if((integerRegs[regNum].dirty == 1) && liveness.get(insnIdx).contains(dest)){
-                // System.out.println("   Save int "+regNum);
-
-                // if(ste == null){ //spill a temporary
-                //     // could be a string too!
-                //     funcScope.addSymbol( Scope.Type.INT, destName) ;
-                //     ste = funcScope.getSymbolTableEntry(destName);
-                // }
-
-                String addr;
+            if(id == 'l'){ //local variable
 
-                if(id == 'l'){ //local variable
+                addr = slot(dest).addressToString();
+                insn = new Sw("x"+String.valueOf(regNum), "fp" , addr); 
 
-                    addr = dest.replace("$l","");
-                    insn = new Sw("x"+String.valueOf(regNum), "fp" , addr); 
+            }else if (id == 'g') {//global variable
+                insn = new Sw("x"+String.valueOf(regNum), "x3", gpOffset(slot(dest)));
 
-                }else if (id == 'g') {//global variable
-                    ste = funcScope.getSymbolTableEntry(dest.replace("$g",""));
-                    addr = ste.addressToString();
-                    assemblyCode.add(new La("x3", addr));
-                    insn = new Sw("x"+String.valueOf(regNum), "x3", "0");
-
-                } else if (id == 't') {
-                    funcScope.addSymbol( Scope.Type.INT, dest.replace("$","")) ;
-                    ste = funcScope.getSymbolTableEntry(dest.replace("$",""));
-                    if (ste == null){
-                        throw new Error("New temporary not added to symbolTable!!!");
-                    }
-                    addr = ste.addressToString();
-                    insn = new Sw("x"+String.valueOf(regNum), "fp", addr);
-
-                } else {
-                    throw new Error("Weird operand (saving register x"+regNum+" for " + dest+")");
+            } else if (id == 't') {
+                ste = spillSlot(dest, true);
+                if (ste == null){
+                    throw new Error("New temporary not added to symbolTable!!!");
                 }
-                assemblyCode.add(insn);
-                integerRegs[regNum].dirty = 0;
-                
+                addr = ste.addressToString();
+                insn = new Sw("x"+String.valueOf(regNum), "fp", addr);
+
+            } else {
+                throw new Error("Weird operand (saving register x"+regNum+" for " + dest+")");
             }
 
         }
         else{
 
-            String addr;
-            if((floatRegs[regNum].dirty == 1) && liveness.get(insnIdx).contains(dest)){
-                // System.out.println("   Save float "+regNum);
-                // System.out.print("  Save ");
-
-                if(id == 'l'){ //local variable
+            if(id == 'l'){ //local variable
 
-                    addr = dest.replace("$l","");
-                    insn = new Fsw("f"+String.valueOf(regNum), "fp" , addr); 
+                addr = slot(dest).addressToString();
+                insn = new Fsw("f"+String.valueOf(regNum), "fp" , addr); 
 
-                }else if (id == 'g') {//global variable
-                    ste = funcScope.getSymbolTableEntry(dest.replace("$g",""));
-                    addr = ste.addressToString();
-                    assemblyCode.add(new La("x3", addr));
-                    insn = new Fsw("f"+String.valueOf(regNum), "x3", "0");
+            }else if (id == 'g') {//global variable
+                insn = new Fsw("f"+String.valueOf(regNum), "x3", gpOffset(slot(dest)));
 
-                } else if (id == 'f') {
-                    funcScope.addSymbol( Scope.Type.FLOAT, dest.replace("$","")) ;
-                    ste = funcScope.getSymbolTableEntry(dest.replace("$",""));
-                    if (ste == null){
-                        throw new Error("New temporary f not added to symbolTable!!!");
-                    }
-                    addr = ste.addressToString();
-                    insn = new Fsw("f"+String.valueOf(regNum), "fp", addr);
-
-                } else {
-                    throw new Error("Weird operand (saving register f"+regNum+" for " + dest+")");
+            } else if (id == 'f') {
+                ste = spillSlot(dest, true);
+                if (ste == null){
+                    throw new Error("New temporary f not added to symbolTable!!!");
                 }
-                assemblyCode.add(insn);
-                floatRegs[regNum].dirty = 0;
-                
+                addr = ste.addressToString();
+                insn = new Fsw("f"+String.valueOf(regNum), "fp", addr);
+
+            } else {
+                throw new Error("Weird operand (saving register f"+regNum+" for " + dest+")");
             }
 
         }
+        assemblyCode.add(insn);
+        if (id == 'g') {
+            restoreGp(slot(dest));
+        }
 
     }
 
@@ -368,6 +1030,10 @@ public class RegisterAllocator {
 
         Character t = reg.charAt(0);
 
+        if ((t == 'x' ? integerRegs[regNum] : floatRegs[regNum]).pinned == 1) {
+            return; //held for the loop
+        }
+
         save(regNum, t);
 
         if (t == 'x') {
@@ -382,7 +1048,7 @@ public class RegisterAllocator {
 
             floatRegs[regNum].dirty = 0;
             floatRegs[regNum].dest = "";
-            integerRegs[regNum].retain = 0;
+            floatRegs[regNum].retain = 0;
             floatRegs[regNum].free = 1;
 
         }
@@ -398,15 +1064,9 @@ public class RegisterAllocator {
         SymbolTableEntry ste = null;
         Scope.Type type = null;
         Character id = operName.charAt(0);
-        if (id == 'l') { //local variable
+        if (id == 'l' || id == 'g') { //local or global variable
 
-            int laddr = Integer.valueOf(operName.substring(1));
-            ste = funcScope.getSymbolTableEntryInt(laddr);
-            type = ste.getType();
-
-        } else if (id == 'g'){ //global variable
-
-            ste = funcScope.getSymbolTableEntry(operName.substring(1));
+            ste = slot(oper);
             type = ste.getType();
 
         } else if (id == 'f'){ //temporary
@@ -420,7 +1080,7 @@ public class RegisterAllocator {
         }
         // funcScope.printTable();
 
-        int regIndx = anyFreeRegs(type); 
+        int regIndx = anyFreeRegs(type, crossesCall(oper)); 
 
         String regName;
 
@@ -458,7 +1118,7 @@ public class RegisterAllocator {
 
         }
 
-        regsUsed.add(regName);
+        use(regName);
 
         return regName;
 
@@ -473,14 +1133,9 @@ public class RegisterAllocator {
         SymbolTableEntry ste = null;
         Scope.Type type = null;
         Character id = operName.charAt(0);
-        if (id == 'l') { //local variable
-
-            int laddr = Integer.valueOf(operName.substring(1));
-            ste = funcScope.getSymbolTableEntryInt(laddr);
-            type = ste.getType();
+        if (id == 'l' || id == 'g') { //local or global variable
 
-        } else if (id == 'g'){ //global variable
-            ste = funcScope.getSymbolTableEntry(operName.substring(1));
+            ste = slot(oper);
             type = ste.getType();
 
         } else if (id == 'f'){ //temporary
@@ -504,8 +1159,17 @@ public class RegisterAllocator {
             if (src) {
                 Instruction insn = null;
                 //temporaries
-                if (id == 'f' || id == 't'){ //temp
-                    ste = funcScope.getSymbolTableEntry(regName.replace("$",""));
+                if (rematDefs.containsKey(oper)) { //recompute
+                    insn = rematerialize(oper, regName);
+                    if (id == 'f'){
+                        floatRegs[Integer.valueOf(regName.replace("f",""))].retain = 1;
+                    } else {
+                        integerRegs[Integer.valueOf(regName.replace("x",""))].retain = 1;
+                    }
+                    assemblyCode.add(insn);
+
+                } else if (id == 'f' || id == 't'){ //temp
+                    ste = spillSlot(oper, false);
                     if (ste == null){ //not spilled
                         throw new Error("Temporary getting allocated without being on stack!");
                     } else { //load
@@ -535,29 +1199,39 @@ public class RegisterAllocator {
                 
                 } else { //global
                     if(type == Scope.Type.FLOAT) {
-                        insn = new Flw(regName, ste.addressToString(), "0");
+                        insn = new Flw(regName, "x3", gpOffset(ste));
                         floatRegs[Integer.valueOf(regName.replace("f",""))].retain = 1;
                     } else if (type == Scope.Type.INT){
-                        insn = new Lw(regName, ste.addressToString(), "0");
+                        insn = new Lw(regName, "x3", gpOffset(ste));
                         integerRegs[Integer.valueOf(regName.replace("x",""))].retain = 1;
                     } else { //string
                         insn = new La(regName, ste.addressToString());
                         integerRegs[Integer.valueOf(regName.replace("x",""))].retain = 1;
                     }
                     assemblyCode.add(insn);
+                    if (type != Scope.Type.STRING) {
+                        restoreGp(ste);
+                    }
                     
                 }
             }
 
        } else {
 
+            //a destination already in a register is overwritten there
             if(type == Scope.Type.FLOAT){
                 regName = "f"+String.valueOf(regIndx);
-                floatRegs[Integer.valueOf(regName.replace("f",""))].retain = 1;
+                floatRegs[regIndx].retain = 1;
+                if (!src) {
+                    floatRegs[regIndx].dirty = 1;
+                }
             }
             else{
                 regName = "x"+String.valueOf(regIndx);
-                integerRegs[Integer.valueOf(regName.replace("x",""))].retain = 1;
+                integerRegs[regIndx].retain = 1;
+                if (!src) {
+                    integerRegs[regIndx].dirty = 1;
+                }
             }
        }
 
@@ -567,65 +1241,76 @@ public class RegisterAllocator {
 
     // // pass the type
     // // if this function returns -1 then I did not find a free register!
-    public int anyFreeRegs(Scope.Type type){
-
-        // if float
-        if(type == Scope.Type.FLOAT){
-            for(int i=0; i < numReg; i++ ){
-                if(floatRegs[i].free == 1 && floatRegs[i].retain == 0){
+    // A value live across a call gets a caller-saved register the callee does not change
+    // if one is free, else a callee-saved one; any other value gets a caller-saved one.
+    // That way it costs neither a save in the prologue nor a spill at a call.
+    public int anyFreeRegs(Scope.Type type, String callee){
+
+        RegsEntry[] regs = (type == Scope.Type.FLOAT) ? floatRegs : integerRegs;
+        boolean[] calleeSaved = (type == Scope.Type.FLOAT) ? floatCalleeSaved : intCalleeSaved;
+        Set<String> changed = (callee == null) ? null : clobbers.get(callee);
+        int fallback = -1;
+        int other = -1;
+        for(int i=0; i < numReg; i++ ){
+            if(regs[i].free == 1 && regs[i].retain == 0 && regs[i].special == 0){
+                String name = ((type == Scope.Type.FLOAT) ? "f" : "x") + i;
+                if (callee == null) {
+                    if (!calleeSaved[i]) {
+                        return i;
+                    }
+                } else if (!calleeSaved[i] && changed != null && !changed.contains(name)) {
                     return i;
+                } else if (calleeSaved[i] && fallback == -1) {
+                    fallback = i;
                 }
-            }
-        }
-        // if int/string
-        else{
-            for(int i=0; i < numReg; i++ ){
-                if(integerRegs[i].free == 1 && integerRegs[i].retain == 0 && integerRegs[i].special == 0){
-                    return i;
+                if (other == -1) {
+                    other = i;
                 }
             }
         }
 
-        return -1;
+        return (fallback != -1) ? fallback : other;
 
      }
 
 
+    // Choose a register to take a new value when none is free (Belady): the one whose
+    // value is next read furthest in the future. Of those, the cheapest to spill goes
+    // (lowest loop-weighted spill cost, see setSpillCosts), then a clean one, which can
+    // be dropped without a store. Special registers, registers holding an operand of the
+    // current instruction (retain, or about to be) and registers held for a loop are
+    // never chosen.
     public int chooseFreeRegs(Scope.Type type){
 
-        // if float
-        if(type == Scope.Type.FLOAT){
+        RegsEntry[] regs = (type == Scope.Type.FLOAT) ? floatRegs : integerRegs;
+        int best = -1;
+        long bestCost = Long.MAX_VALUE;
+        int bestUse = -1;
+        boolean bestClean = false;
 
-            for(int i=0; i < numReg; i++ ){
-                if(floatRegs[i].dirty == 0 && floatRegs[i].retain == 0){
-                    return i;
-                }
-            }
-            if (floatRegs[0].retain == 0){
-                free("f0");
-                return 0;
-            } else {
-                free("f1");
-                return 1;
+        for(int i=0; i < numReg; i++ ){
+            if (regs[i].special == 1 || regs[i].retain == 1 || regs[i].pinned == 1) {
+                continue;
             }
-        
-        }
-        // if int/string
-        else{
-            for(int i=0; i < numReg; i++ ){
-                if(integerRegs[i].dirty == 0 && integerRegs[i].retain == 0 && integerRegs[i].special == 0){
-                    return i;
-                }
+            int use = nextUse(regs[i].dest);
+            if (use == insnIdx) {
+                continue; //an operand of this instruction, not in its register yet
             }
-            if (integerRegs[3].retain == 0){
-                free("x4");
-                return 3;
-            } else {
-                free("x5");
-                return 4;
+            long cost = spillCosts.getOrDefault(regs[i].dest, 0L);
+            boolean clean = (regs[i].dirty == 0);
+            if (use > bestUse || (use == bestUse && (cost < bestCost || (cost == bestCost && clean && !bestClean)))) {
+                best = i;
+                bestCost = cost;
+                bestUse = use;
+                bestClean = clean;
             }
-
         }
+        if (best == -1) {
+            throw new Error("No register left to spill: all "+numReg+" are special or in use by one instruction");
+        }
+
+        free(((type == Scope.Type.FLOAT) ? "f" : "x") + best); //stores the value if it is dirty and live
+        return best;
 
      } 
 
@@ -665,6 +1350,203 @@ public class RegisterAllocator {
 
 
 
+    // Shrink-wrapping: each callee-saved register is saved, in its own frame slot, at the
+    // start of the nearest block that every use of it passes through, and restored where
+    // the function returns from there. That block is moved up to its dominator until it
+    // is entered at most once and the code reachable from it cannot be reached any other
+    // way, so the save runs before all uses and every path out of it meets a restore.
+    // Paths that never use the register (an early return) skip both.
+    public void shrinkWrap() {
+        ArrayList<Instruction> code = new ArrayList<Instruction>(assemblyCode.nodes);
+        TreeSet<Integer> leaderSet = new TreeSet<Integer>();
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        leaderSet.add(0);
+        for (int idx = 0; idx < code.size(); idx++) {
+            Instruction i = code.get(idx);
+            if (i.getOC() == null && i.getLabel() != null) {
+                leaderSet.add(idx);
+                labels.put(i.getLabel(), idx);
+            } else if (endsBlock(i)) {
+                leaderSet.add(idx + 1);
+            }
+        }
+        leaderSet.add(code.size());
+        ArrayList<Integer> leaders = new ArrayList<Integer>(leaderSet);
+        int numBlocks = leaders.size() - 1;
+        if (numBlocks <= 0) {
+            return;
+        }
+
+        //successors as in setLiveOut; an exit block leaves by a jump to the return label or by falling off the end
+        ArrayList<ArrayList<Integer>> succs = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> preds = new ArrayList<ArrayList<Integer>>();
+        boolean[] exits = new boolean[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            preds.add(new ArrayList<Integer>());
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            ArrayList<Integer> s = new ArrayList<Integer>();
+            Instruction last = code.get(leaders.get(b+1) - 1);
+            boolean falls = true;
+            if (endsBlock(last) && last.getOC() != OpCode.FEQ && last.getOC() != OpCode.FLT && last.getOC() != OpCode.FLE) {
+                falls = (last.getOC() != OpCode.J && last.getOC() != OpCode.RET);
+                Integer target = (last.getLabel() == null) ? null : labels.get(last.getLabel());
+                if (target != null) {
+                    s.add(leaders.indexOf(target));
+                } else {
+                    exits[b] = true;
+                }
+            }
+            if (falls) {
+                if (b + 1 < numBlocks) {
+                    s.add(b+1);
+                } else {
+                    exits[b] = true;
+                }
+            }
+            for (int t : s) {
+                preds.get(t).add(b);
+            }
+            succs.add(s);
+        }
+
+        //dominators: dom[b] holds every block that all paths from the entry to b pass through
+        ArrayList<HashSet<Integer>> dom = new ArrayList<HashSet<Integer>>();
+        HashSet<Integer> all = new HashSet<Integer>();
+        for (int b = 0; b < numBlocks; b++) {
+            all.add(b);
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            dom.add(new HashSet<Integer>(b == 0 ? Set.of(0) : all));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = 1; b < numBlocks; b++) {
+                HashSet<Integer> d = new HashSet<Integer>(all);
+                for (int p : preds.get(b)) {
+                    d.retainAll(dom.get(p));
+                }
+                d.add(b);
+                if (!d.equals(dom.get(b))) {
+                    dom.set(b, d);
+                    changed = true;
+                }
+            }
+        }
+
+        //code that cannot run needs no saves
+        HashSet<Integer> entered = reachable(0, succs);
+        entered.add(0);
+
+        HashMap<Integer, ArrayList<Instruction>> saves = new HashMap<Integer, ArrayList<Instruction>>();
+        HashMap<Integer, ArrayList<Instruction>> restores = new HashMap<Integer, ArrayList<Instruction>>();
+        for (String reg : regsUsed) {
+            HashSet<Integer> common = null;
+            for (int b : entered) {
+                for (int idx = leaders.get(b); idx < leaders.get(b+1); idx++) {
+                    Instruction i = code.get(idx);
+                    if (reg.equals(i.getOperand(Operand.SRC1)) || reg.equals(i.getOperand(Operand.SRC2))
+                            || reg.equals(i.getOperand(Operand.DEST))) {
+                        if (common == null) {
+                            common = new HashSet<Integer>(dom.get(b));
+                        } else {
+                            common.retainAll(dom.get(b));
+                        }
+                        break;
+                    }
+                }
+            }
+            if (common == null) {
+                continue;
+            }
+
+            //the deepest common dominator, then up the dominator tree until it is a single-entry region
+            int at = deepest(common, dom);
+            HashSet<Integer> region = reachable(at, succs);
+            while (at != 0 && (region.contains(at) || !dominatesAll(at, region, dom))) {
+                HashSet<Integer> up = new HashSet<Integer>(dom.get(at));
+                up.remove(at);
+                at = deepest(up, dom);
+                region = reachable(at, succs);
+            }
+            region.add(at);
+
+            Scope.Type type = (reg.charAt(0) == 'x') ? Scope.Type.INT : Scope.Type.FLOAT;
+            funcScope.addSymbol(type, "$save" + reg);
+            String addr = funcScope.getSlot(funcScope.getNumSlots() - 1).addressToString();
+            saves.computeIfAbsent(at, k -> new ArrayList<Instruction>())
+                    .add((type == Scope.Type.INT) ? new Sw(reg, "fp", addr) : new Fsw(reg, "fp", addr));
+            for (int b : region) {
+                if (exits[b]) {
+                    restores.computeIfAbsent(b, k -> new ArrayList<Instruction>())
+                            .add((type == Scope.Type.INT) ? new Lw(reg, "fp", addr) : new Flw(reg, "fp", addr));
+                }
+            }
+        }
+
+        //saves go after the block's label, restores before its return jump (or at the end of the body)
+        InstructionList wrapped = new InstructionList();
+        for (int b = 0; b < numBlocks; b++) {
+            int start = leaders.get(b);
+            int end = leaders.get(b+1);
+            Instruction first = code.get(start);
+            Instruction last = code.get(end-1);
+            boolean labelled = (first.getOC() == null && first.getLabel() != null);
+            boolean jumps = (last.getOC() == OpCode.J || last.getOC() == OpCode.RET);
+            if (labelled) {
+                wrapped.add(first);
+            }
+            if (saves.containsKey(b)) {
+                wrapped.addAll(saves.get(b));
+            }
+            for (int idx = labelled ? start+1 : start; idx < end; idx++) {
+                if (idx == end-1 && jumps && restores.containsKey(b)) {
+                    wrapped.addAll(restores.get(b));
+                }
+                wrapped.add(code.get(idx));
+            }
+            if (!jumps && restores.containsKey(b)) {
+                //falls off the end of the body into the return label
+                wrapped.addAll(restores.get(b));
+            }
+        }
+        assemblyCode = wrapped;
+    }
+
+    // the block in blocks that is dominated by all the others
+    private int deepest(Set<Integer> blocks, ArrayList<HashSet<Integer>> dom) {
+        int best = 0;
+        for (int b : blocks) {
+            if (dom.get(b).size() > dom.get(best).size()) {
+                best = b;
+            }
+        }
+        return best;
+    }
+
+    // blocks reachable from b by at least one edge
+    private HashSet<Integer> reachable(int b, ArrayList<ArrayList<Integer>> succs) {
+        HashSet<Integer> seen = new HashSet<Integer>();
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>(succs.get(b));
+        while (!work.isEmpty()) {
+            int n = work.pop();
+            if (seen.add(n)) {
+                work.addAll(succs.get(n));
+            }
+        }
+        return seen;
+    }
+
+    private boolean dominatesAll(int b, Set<Integer> blocks, ArrayList<HashSet<Integer>> dom) {
+        for (int n : blocks) {
+            if (!dom.get(n).contains(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void convert() {
         //set the basic block leaders
         System.out.print(" *** Set Basic Blocks *** ");
@@ -675,6 +1557,7 @@ public class RegisterAllocator {
 
         //get liveness for whole function body
         System.out.print(" *** LIveness *** ");
+        setLiveOut();
         ListIterator<Integer> iter = bbLeaders.listIterator(0);
         int present = iter.next();
         int next = 0;
@@ -693,11 +1576,16 @@ public class RegisterAllocator {
         }
         System.out.println(" *** Liveness End*** ");
 
+        setRemat();
+        setSpillCosts();
+        setLoops();
+
         int start, end;
         for(int i = 0; i < bbLeaders.size()-1; i++) { 
 	        // System.out.println(bbLeaders.get(i));
             start = bbLeaders.get(i);
             end = bbLeaders.get(i+1);
+            setAccesses(start, end);
 
             Instruction insn = null;
             String oper1, oper2, oper3;
@@ -706,13 +1594,19 @@ public class RegisterAllocator {
             //for each basic block
             for (int j=start; j < end; j++) {
                 insnIdx = j;
+                usesFrom = j;
                 insn = funcBody.get(j);
                 System.out.println("Main: " + insn);
 
+                //the operands of the previous instruction may be spilled again
+                for(int n=0; n < numReg; n++ ){
+                    integerRegs[n].retain = 0;
+                    floatRegs[n].retain = 0;
+                }
+
                 if (insn.is3AC()) {
                     if (insn.getOC()!= null){
-                        if(insn.getOC().toString().equals("SW") && 
-                              (insn.getOperand(Operand.SRC1).equals("sp")||insn.getOperand(Operand.SRC1).equals("fp"))){
+                        if(isFrameStore(insn)){
                             // Ensure the register
                             oper3 = insn.getOperand(Operand.DEST);
                             if (insn.is3AC(oper3))
@@ -751,8 +1645,10 @@ public class RegisterAllocator {
                         } else {
                             floatRegs[regIndx].retain = 0;
                         }
-                        if (!liveness.get(insnIdx).contains(oper1))
+                        if (!liveness.get(insnIdx).contains(oper1)) {
                             free(reg1);
+                            releaseSpillSlot(oper1);
+                        }
                     }
 
                     if (insn.is3AC(oper2)){
@@ -763,45 +1659,62 @@ public class RegisterAllocator {
                         } else {
                             floatRegs[regIndx].retain = 0;
                         }
-                        if (!liveness.get(insnIdx).contains(oper2))
+                        if (!liveness.get(insnIdx).contains(oper2)) {
                             free(reg2);
+                            releaseSpillSlot(oper2);
+                        }
                     }
 
                     //     Rc = allocate(opC)
+                    usesFrom = j+1;
                     oper3 = insn.getOperand(Operand.DEST);
                     if (insn.is3AC(oper3))
                         reg3 = ensure(oper3, false);
                     else
                         reg3 = oper3;
 
+                    //a rematerializable value never needs saving, so it is as good as clean
+                    if (rematDefs.containsKey(oper3)) {
+                        if (oper3.charAt(1) == 'f') {
+                            floatRegs[Integer.valueOf(reg3.replace("f",""))].dirty = 0;
+                        } else {
+                            integerRegs[Integer.valueOf(reg3.replace("x",""))].dirty = 0;
+                        }
+                    }
+
                     //generate code for insn
                     Instruction icode = insn;
                     icode.setOperands(reg1, reg2, reg3);
 
+                    if (j == end-1 && endsBlock(insn)) {
+                        endBlock();
+                    }
                     assemblyCode.add(icode);
                 } else {
                     //Jump, Label, etc.
+                    if (j == end-1 && endsBlock(insn)) {
+                        endBlock();
+                    }
+                    if (loopHeads.containsKey(j)) {
+                        enterLoop(loopHeads.get(j));
+                    }
+                    if (insn.getOC() == OpCode.JR) {
+                        splitAtCall(insn.getLabel().substring("func_".length()));
+                    }
                     assemblyCode.add(insn);
+                    if (loopExits.containsKey(j)) {
+                        exitLoop(loopExits.get(j));
+                    }
                 }
                 // printRegsEntry();
             }
 
-            //save all dirty/live registers
-            String regName;
-            for(int n=0; n < numReg; n++ ){
-                if (floatRegs[n].free == 0){
-                    if(floatRegs[n].dest.charAt(1) == 'l' || floatRegs[n].dest.charAt(1) == 'g'){
-                        save(n,'f');
-                    }
-
-                }
-                if (integerRegs[n].free == 0){
-                    if(integerRegs[n].dest.charAt(1) == 'l' || integerRegs[n].dest.charAt(1) == 'g'){
-                        System.out.println("  " + integerRegs[n].dest);
-                        save(n,'x'); //automatically excludes the speacial registers
-                    }
-                }
+            if (!endsBlock(insn)) {
+                endBlock();
             }
+            releaseAllSpillSlots();
         }
+
+        shrinkWrap();
     }
 }
\ No newline at end of file
@@ -45,7 +45,19 @@ public class Compiler {
 			TypeVisitor pv = new TypeVisitor();
 			pv.run(ast);
 
-			CodeGenerator cg = new CodeGenerator();
+			//optional arguments: number of registers to allocate (default 32), and
+			//--omit-frame-pointer to address frames from sp and free fp for allocation
+			int numRegisters = 32;
+			boolean omitFramePointer = false;
+			for (int a = 1; a < args.length; a++) {
+				if (args[a].equals("--omit-frame-pointer")) {
+					omitFramePointer = true;
+				} else {
+					numRegisters = Integer.parseInt(args[a]);
+				}
+			}
+			CodeGenerator cg = new CodeGenerator(numRegisters);
+			cg.setOmitFramePointer(omitFramePointer);
 			CodeObject co = cg.run(ast);
 
 			// Print out ".section .text"
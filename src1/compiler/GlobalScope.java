@@ -36,7 +36,7 @@ import java.util.List;
 
 	public ErrorType addFunctionSymbol(compiler.Scope.Type returnType, String name, List<compiler.Scope.Type> argTypes) {
 		ErrorType retVal = checkSymbol(name);
-		table.put(name, new FunctionSymbolTableEntry(returnType, name, argTypes));
+		table.put(name, addSlot(new FunctionSymbolTableEntry(returnType, name, argTypes)));
 		return retVal;
 	}
 
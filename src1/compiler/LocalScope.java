@@ -27,7 +27,7 @@ public class LocalScope extends Scope {
 
 	public ErrorType addArgument(Scope.Type type, String name) {
 		ErrorType retVal = checkSymbol(name);
-		table.put(name, genArgument(type, name));
+		table.put(name, addSlot(genArgument(type, name)));
 		return retVal;
 	}
 
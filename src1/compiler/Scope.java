@@ -1,5 +1,6 @@
 package compiler;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -22,12 +23,14 @@ public abstract class Scope{
 	}
 	
 	protected LinkedHashMap<String, SymbolTableEntry> table;
+	protected ArrayList<SymbolTableEntry> slots; //entries by their dense index
 	protected LinkedList<Scope> subScopes;
 	protected String name;
 	protected Scope parentTable;
 	
 	public Scope() {
 		table = new LinkedHashMap<String, SymbolTableEntry>();
+		slots = new ArrayList<SymbolTableEntry>();
 		subScopes = new LinkedList<Scope>();
 		name = "";
 		parentTable = null;
@@ -48,7 +51,7 @@ public abstract class Scope{
 	
 	public ErrorType addSymbol(Type type, String name) {
 		ErrorType retVal = checkSymbol(name);
-		table.put(name, genSymbol(type, name));
+		table.put(name, addSlot(genSymbol(type, name)));
 		return retVal;
 	}
 
@@ -56,12 +59,37 @@ public abstract class Scope{
 	
 	public ErrorType addSymbol(Type type, String name, String value) {
 		ErrorType retVal = checkSymbol(name);
-		table.put(name, genStringSymbol(type, name, value));
+		table.put(name, addSlot(genStringSymbol(type, name, value)));
 		return retVal;
 	}
 
 	abstract protected StringSymbolTableEntry genStringSymbol(Type type, String name, String value);
 	
+	/**
+	 * Give a new entry the next dense index of this scope, so later phases
+	 * can find it with {@link #getSlot} instead of by name
+	 */
+	protected SymbolTableEntry addSlot(SymbolTableEntry ste) {
+		ste.setIndex(slots.size());
+		slots.add(ste);
+		return ste;
+	}
+
+	/**
+	 * @return the entry of this scope (not its parents) with the given dense index
+	 */
+	public SymbolTableEntry getSlot(int index) {
+		return slots.get(index);
+	}
+
+	public int getNumSlots() {
+		return slots.size();
+	}
+
+	public Scope getParent() {
+		return parentTable;
+	}
+
 	public Scope addSubScope(String name) {
 		Scope newScope = new LocalScope(this);
 		newScope.setName(name);
@@ -81,22 +109,6 @@ public abstract class Scope{
 		}
 	}
 
-	//TASK5
-	public SymbolTableEntry getSymbolTableEntryInt(int addr) {
-		SymbolTableEntry retval = null;
-		SymbolTableEntry temp = null;
-
-		for (String vars : table.keySet()) {
-			temp = table.get(vars);
-			if (temp.getAddress() == addr) {
-				retval = temp;
-				break;
-			}
-		}
-
-		return retval;
-	}
-	
 	protected abstract SymbolTableEntry searchLocalScope(String name);
 
 	protected ErrorType checkSymbol(String name) {
@@ -141,6 +153,7 @@ public abstract class Scope{
 		private Scope.Type type;
 		private int address;
 		private boolean isLocal;
+		private int index; //dense index within its scope
 		
 		public SymbolTableEntry(Scope.Type type, String name, int address, boolean isLocal) {
 			this.setName(name);
@@ -189,6 +202,14 @@ public abstract class Scope{
 		public boolean isLocal() {
 			return this.isLocal;
 		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public void setIndex(int index) {
+			this.index = index;
+		}
 		
 	}
 	
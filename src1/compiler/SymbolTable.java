@@ -12,8 +12,15 @@ public class SymbolTable {
 	private Stack<Scope> scopeStack;
 	private LinkedList<String> errors;
 
+	//where strings and global variables are placed
+	public static final int STRING_BASE = 0x10000000;
+	public static final int GLOBAL_BASE = 0x20000000;
+	//value of the global pointer (x3): globals are addressed at a signed offset from it,
+	//so the first 4KB of them are within reach of a 12-bit immediate
+	public static final int GLOBAL_POINTER = GLOBAL_BASE + 0x800;
+
 	public SymbolTable() {
-		this(0x10000000, 0x20000000);
+		this(STRING_BASE, GLOBAL_BASE);
 	}
 
 	public SymbolTable(int stringBase, int globalBase) {